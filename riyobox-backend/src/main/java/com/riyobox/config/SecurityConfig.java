@@ -1,9 +1,12 @@
 package com.riyobox.config;
 
+import com.riyobox.controller.StreamController;
 import com.riyobox.security.JwtAuthenticationFilter;
+import com.riyobox.security.PlaybackTokenFilter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.AuthenticationProvider;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
@@ -31,6 +34,7 @@ import java.util.List;
 public class SecurityConfig {
 
     private final JwtAuthenticationFilter jwtAuthenticationFilter;
+    private final PlaybackTokenFilter playbackTokenFilter;
     private final UserDetailsService userDetailsService;
 
     @Bean
@@ -54,7 +58,7 @@ public class SecurityConfig {
                 .requestMatchers("/api/media/posters/**").permitAll()
                 
                 // Authenticated endpoints
-                .requestMatchers("/api/stream/**").authenticated()
+                .requestMatchers(StreamController.BASE_PATH + "/**").authenticated()
                 .requestMatchers("/api/movies/**").authenticated()
                 .requestMatchers("/api/categories/**").authenticated()
                 .requestMatchers("/api/users/**").authenticated()
@@ -77,7 +81,8 @@ public class SecurityConfig {
                 .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
             )
             .authenticationProvider(authenticationProvider())
-            .addFilterBefore(jwtAuthenticationFilter, UsernamePasswordAuthenticationFilter.class);
+            .addFilterBefore(jwtAuthenticationFilter, UsernamePasswordAuthenticationFilter.class)
+            .addFilterBefore(playbackTokenFilter, JwtAuthenticationFilter.class);
 
         return http.build();
     }
@@ -148,7 +153,9 @@ public class SecurityConfig {
             "X-API-Key",
             "X-Device-Id",
             "X-Platform",
-            "X-App-Version"
+            "X-App-Version",
+            "Range",
+            "If-Range"
         ));
         
         // Exposed headers (important for streaming)
@@ -162,7 +169,10 @@ public class SecurityConfig {
             "X-Page-Size",
             "X-Total-Pages",
             "Authorization",
-            "X-Refresh-Token"
+            "X-Refresh-Token",
+            "ETag",
+            "Content-Disposition",
+            "x-amz-checksum-crc32c"
         ));
         
         configuration.setAllowCredentials(true);
@@ -175,12 +185,15 @@ public class SecurityConfig {
     
     // Additional security configurations
     
+    // Ahead of the main chain, which matches every request. Always limited to /h2-console/** so it can never
+    // stand in for the main chain, and closed outside development.
     @Bean
+    @Order(1)
     public SecurityFilterChain h2ConsoleSecurityFilterChain(HttpSecurity http) throws Exception {
+        http.securityMatcher("/h2-console/**");
         // Allow H2 Console access only in development
         if (Arrays.asList("dev", "local").contains(System.getProperty("spring.profiles.active"))) {
             http
-                .securityMatcher("/h2-console/**")
                 .authorizeHttpRequests(auth -> auth
                     .anyRequest().permitAll()
                 )
@@ -188,6 +201,10 @@ public class SecurityConfig {
                 .headers(headers -> headers
                     .frameOptions(frame -> frame.sameOrigin())
                 );
+        } else {
+            http.authorizeHttpRequests(auth -> auth
+                .anyRequest().denyAll()
+            );
         }
         return http.build();
     }
@@ -5,11 +5,19 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.backoff.BackoffStrategy;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.net.URI;
+import java.time.Duration;
 
 @Configuration
 public class StorageConfig {
@@ -26,6 +34,41 @@ public class StorageConfig {
     @Value("${cloudflare.r2.region}")
     private String region;
     
+    @Value("${cloudflare.r2.client.max-concurrency:256}")
+    private int maxConcurrency;
+    
+    @Value("${cloudflare.r2.client.max-pending-acquires:10000}")
+    private int maxPendingAcquires;
+    
+    @Value("${cloudflare.r2.client.connect-timeout-ms:2000}")
+    private long connectTimeoutMillis;
+    
+    @Value("${cloudflare.r2.client.acquire-timeout-ms:10000}")
+    private long acquireTimeoutMillis;
+    
+    @Value("${cloudflare.r2.client.read-timeout-ms:15000}")
+    private long readTimeoutMillis;
+    
+    @Value("${cloudflare.r2.client.idle-timeout-ms:60000}")
+    private long idleTimeoutMillis;
+    
+    @Value("${cloudflare.r2.client.attempt-timeout-ms:20000}")
+    private long attemptTimeoutMillis;
+    
+    @Value("${cloudflare.r2.client.call-timeout-ms:60000}")
+    private long callTimeoutMillis;
+    
+    @Value("${cloudflare.r2.client.max-retries:3}")
+    private int maxRetries;
+    
+    @Value("${cloudflare.r2.client.retry-base-delay-ms:100}")
+    private long retryBaseDelayMillis;
+    
+    @Value("${cloudflare.r2.client.retry-max-backoff-ms:5000}")
+    private long retryMaxBackoffMillis;
+    
+    // Kept for streaming bodies (uploads, uncached reads) whose duration depends on the file, so it gets the
+    // retry policy but no call timeouts
     @Bean
     public S3Client s3Client() {
         AwsBasicCredentials credentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
@@ -34,10 +77,67 @@ public class StorageConfig {
                 .credentialsProvider(StaticCredentialsProvider.create(credentials))
                 .region(Region.of(region))
                 .endpointOverride(URI.create("https://" + accountId + ".r2.cloudflarestorage.com"))
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .retryPolicy(retryPolicy())
+                        .build())
                 .serviceConfiguration(S3Configuration.builder()
                         .checksumValidationEnabled(false)
                         .chunkedEncodingEnabled(true)
                         .build())
                 .build();
     }
+    
+    // Block fetches and metadata lookups: one pooled Netty client, bounded so a burst of cache misses queues
+    // for a connection instead of opening thousands of them
+    @Bean
+    public S3AsyncClient s3AsyncClient() {
+        AwsBasicCredentials credentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
+        
+        return S3AsyncClient.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(credentials))
+                .region(Region.of(region))
+                .endpointOverride(URI.create("https://" + accountId + ".r2.cloudflarestorage.com"))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrency)
+                        .maxPendingConnectionAcquires(maxPendingAcquires)
+                        .connectionTimeout(Duration.ofMillis(connectTimeoutMillis))
+                        .connectionAcquisitionTimeout(Duration.ofMillis(acquireTimeoutMillis))
+                        .readTimeout(Duration.ofMillis(readTimeoutMillis))
+                        .writeTimeout(Duration.ofMillis(readTimeoutMillis))
+                        .connectionMaxIdleTime(Duration.ofMillis(idleTimeoutMillis)))
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .apiCallAttemptTimeout(Duration.ofMillis(attemptTimeoutMillis))
+                        .apiCallTimeout(Duration.ofMillis(callTimeoutMillis))
+                        .retryPolicy(retryPolicy())
+                        .build())
+                .serviceConfiguration(S3Configuration.builder()
+                        .checksumValidationEnabled(false)
+                        .build())
+                .build();
+    }
+    
+    // Presigners are thread-safe and costly to build; share one instead of creating one per URL
+    @Bean
+    public S3Presigner s3Presigner() {
+        AwsBasicCredentials credentials = AwsBasicCredentials.create(accessKeyId, secretAccessKey);
+        
+        return S3Presigner.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(credentials))
+                .region(Region.of(region))
+                .endpointOverride(URI.create("https://" + accountId + ".r2.cloudflarestorage.com"))
+                .build();
+    }
+    
+    // Full jitter spreads the retries of many clients that failed together instead of retrying in lockstep
+    private RetryPolicy retryPolicy() {
+        BackoffStrategy backoff = FullJitterBackoffStrategy.builder()
+                .baseDelay(Duration.ofMillis(retryBaseDelayMillis))
+                .maxBackoffTime(Duration.ofMillis(retryMaxBackoffMillis))
+                .build();
+        return RetryPolicy.builder()
+                .numRetries(maxRetries)
+                .backoffStrategy(backoff)
+                .throttlingBackoffStrategy(backoff)
+                .build();
+    }
 }
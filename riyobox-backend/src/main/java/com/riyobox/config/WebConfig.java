@@ -1,12 +1,34 @@
 package com.riyobox.config;
 
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.Set;
+
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
     
+    // Uploads whose multipart body the controller reads off the socket itself
+    public static final Set<String> STREAMED_UPLOAD_PATHS = Set.of("/upload/video/stream");
+    
+    // Replaces Boot's resolver so the streamed upload paths are not spooled to temp files before the controller
+    // runs. Nothing on those paths may call getParameter(), which would make Tomcat parse the body as well.
+    @Bean
+    public MultipartResolver multipartResolver() {
+        return new StandardServletMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                String path = request.getRequestURI().substring(request.getContextPath().length());
+                return !STREAMED_UPLOAD_PATHS.contains(path) && super.isMultipart(request);
+            }
+        };
+    }
+    
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/**")
@@ -1,6 +1,7 @@
 package com.riyobox.controller;
 
 import com.riyobox.model.Movie;
+import com.riyobox.model.ProbeJob;
 import com.riyobox.model.dto.MovieDTO;
 import com.riyobox.service.MovieService;
 import lombok.RequiredArgsConstructor;
@@ -84,6 +85,19 @@ public class MovieController {
         return ResponseEntity.ok(movieService.updateMovie(id, movie));
     }
     
+    // Progress of the jobs is also published to /topic/admin/probe-jobs
+    @PostMapping("/{id}/probe")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<ProbeJob>> probeMovie(@PathVariable String id) {
+        return ResponseEntity.ok(movieService.probeMovie(id));
+    }
+    
+    @GetMapping("/{id}/probe-jobs")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<ProbeJob>> getProbeJobs(@PathVariable String id) {
+        return ResponseEntity.ok(movieService.getProbeJobs(id));
+    }
+    
     @DeleteMapping("/{id}")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<Void> deleteMovie(@PathVariable String id) {
@@ -1,68 +1,462 @@
 package com.riyobox.controller;
 
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.media.FaststartLayout;
+import com.riyobox.model.Download;
+import com.riyobox.model.ObjectMetadata;
+import com.riyobox.model.User;
+import com.riyobox.security.PlaybackTokenFilter;
+import com.riyobox.security.SecurityUtils;
+import com.riyobox.service.DownloadService;
+import com.riyobox.service.MediaIndexService;
+import com.riyobox.service.PlaybackTokenService;
+import com.riyobox.service.RangeSelection;
+import com.riyobox.service.StreamMetrics;
+import com.riyobox.service.StreamObservation;
+import com.riyobox.service.StreamingManifestService;
+import com.riyobox.service.VideoStreamService;
+import com.riyobox.service.VideoStreamService.ByteRange;
+import com.riyobox.service.VideoStreamService.MultipartRanges;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.bind.annotation.*;
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
 
 @RestController
-@RequestMapping("/api/stream")
+@RequestMapping(StreamController.BASE_PATH)
 @RequiredArgsConstructor
 public class StreamController {
     
-    private final S3Client s3Client;
-    private final String bucketName = "riyobox-storage";
+    // Below the servlet context path; PlaybackTokenFilter and SecurityConfig match stream requests on it
+    public static final String BASE_PATH = "/api/stream";
     
-    @GetMapping("/video/{key}")
+    // Tomcat NIO sendfile request attributes (see org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    
+    private static final String HLS_PLAYLIST = "application/vnd.apple.mpegurl";
+    private static final String DASH_MANIFEST = "application/dash+xml";
+    
+    // Same name and encoding as S3's additional checksums
+    private static final String CHECKSUM_CRC32C = "x-amz-checksum-crc32c";
+    
+    private final VideoStreamService videoStreamService;
+    private final StreamingManifestService streamingManifestService;
+    private final MediaIndexService mediaIndexService;
+    private final StreamMetrics streamMetrics;
+    private final DownloadService downloadService;
+    private final PlaybackTokenService playbackTokenService;
+    
+    @Value("${app.streaming.cache-control:private, no-cache}")
+    private String cacheControl;
+    
+    @Value("${app.streaming.max-ranges:16}")
+    private int maxRanges;
+    
+    @Value("${app.streaming.manifest.ttl-seconds:60}")
+    private long manifestMaxAge;
+    
+    @RequestMapping(value = "/video/{key}", method = {RequestMethod.GET, RequestMethod.HEAD})
     @PreAuthorize("isAuthenticated()")
-    public ResponseEntity<InputStreamResource> streamVideo(
+    public void streamVideo(
             @PathVariable String key,
-            @RequestHeader(value = "Range", required = false) String rangeHeader) throws IOException {
-        
-        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                .bucket(bucketName)
-                .key(key)
-                .build();
-        
-        ResponseInputStream<GetObjectResponse> response = s3Client.getObject(getObjectRequest);
-        
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.parseMediaType("video/mp4"));
-        headers.set("Accept-Ranges", "bytes");
-        headers.set("Content-Disposition", "inline");
-        
-        if (rangeHeader != null) {
-            // Handle range requests for seeking
-            String[] ranges = rangeHeader.substring("bytes=".length()).split("-");
-            long start = Long.parseLong(ranges[0]);
-            Long end = ranges.length > 1 ? Long.parseLong(ranges[1]) : null;
-            
-            headers.set("Content-Range", "bytes " + start + "-" + 
-                (end != null ? end : (response.response().contentLength() - 1)) + 
-                "/" + response.response().contentLength());
-            
-            return new ResponseEntity<>(
-                new InputStreamResource(response),
-                headers,
-                HttpStatus.PARTIAL_CONTENT
-            );
-        }
-        
-        return new ResponseEntity<>(
-            new InputStreamResource(response),
-            headers,
-            HttpStatus.OK
-        );
+            @RequestHeader(value = "Range", required = false) String rangeHeader,
+            @RequestHeader(value = "If-Range", required = false) String ifRange,
+            @RequestParam(value = "quality", required = false) String quality,
+            @RequestParam(value = "faststart", defaultValue = "false") boolean faststart,
+            @RequestParam(value = "snap", defaultValue = "false") boolean snap,
+            Principal principal,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        serve(key, new PlaybackOptions(null, quality, faststart, snap, null), rangeHeader, ifRange, principal,
+                request, response);
+    }
+    
+    // Rendition of a movie by quality; HLS and DASH segments are byte ranges of this resource
+    @RequestMapping(value = "/movies/{movieId}/{quality}/video", method = {RequestMethod.GET, RequestMethod.HEAD})
+    @PreAuthorize("isAuthenticated()")
+    public void streamMovieVideo(
+            @PathVariable String movieId,
+            @PathVariable String quality,
+            @RequestHeader(value = "Range", required = false) String rangeHeader,
+            @RequestHeader(value = "If-Range", required = false) String ifRange,
+            @RequestParam(value = "faststart", defaultValue = "false") boolean faststart,
+            @RequestParam(value = "snap", defaultValue = "false") boolean snap,
+            Principal principal,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        String key = streamingManifestService.resolveKey(movieId, quality);
+        serve(key, new PlaybackOptions(movieId, quality, faststart, snap, null), rangeHeader, ifRange, principal,
+                request, response);
+    }
+    
+    // Playback sessions: one JWT-authenticated call returns a stream URL whose token authorizes the range
+    // requests that follow, so those skip the JWT parse and user lookup
+    @PostMapping("/video/{key}/session")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> createSession(
+            @PathVariable String key,
+            @RequestParam(value = "quality", required = false) String quality,
+            HttpServletRequest request) {
+        return ResponseEntity.ok(playbackSession(request, "video/" + key, quality));
+    }
+    
+    @PostMapping("/movies/{movieId}/{quality}/session")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> createMovieSession(
+            @PathVariable String movieId,
+            @PathVariable String quality,
+            HttpServletRequest request) {
+        // Fails for qualities the movie does not have, and warms the key lookup for the requests to come
+        streamingManifestService.resolveKey(movieId, quality);
+        return ResponseEntity.ok(playbackSession(request, "movies/" + movieId + "/" + quality + "/video", null));
+    }
+    
+    private Map<String, Object> playbackSession(HttpServletRequest request, String resource, String quality) {
+        User user = SecurityUtils.getCurrentUser()
+                .orElseThrow(() -> new AccessDeniedException("No authenticated user"));
+        PlaybackTokenService.PlaybackToken token = playbackTokenService.issue(user, resource, quality);
+        String url = UriComponentsBuilder.fromPath(request.getContextPath() + BASE_PATH + "/")
+                .path(resource)
+                .queryParamIfPresent("quality", Optional.ofNullable(quality))
+                .queryParam(PlaybackTokenFilter.TOKEN_PARAMETER, token.token())
+                .encode()
+                .toUriString();
+        return Map.of("url", url, "token", token.token(), "expiresAt", token.expiresAt());
+    }
+    
+    // Offline downloads: the stored file as an attachment, resumable with Range/If-Range. A range that is
+    // exactly one chunk of the manifest carries that chunk's CRC32C, on HEAD as well, so clients can verify
+    // what they already have and refetch only bad chunks.
+    @RequestMapping(value = "/downloads/{downloadId}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    @PreAuthorize("isAuthenticated()")
+    public void downloadFile(
+            @PathVariable String downloadId,
+            @RequestHeader(value = "Range", required = false) String rangeHeader,
+            @RequestHeader(value = "If-Range", required = false) String ifRange,
+            Principal principal,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        Download download = currentUserDownload(downloadId);
+        PlaybackOptions options = new PlaybackOptions(download.getMovieId(), download.getQuality(), false, false,
+                downloadService.fileName(download));
+        serve(downloadService.resolveKey(download), options, rangeHeader, ifRange, principal, request, response);
+    }
+    
+    // How a client should split the download into checksummed chunks
+    @GetMapping("/downloads/{downloadId}/manifest")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getDownloadManifest(@PathVariable String downloadId) {
+        Download download = currentUserDownload(downloadId);
+        ObjectMetadata object = videoStreamService.getMetadata(downloadService.resolveKey(download));
+        int chunkSize = videoStreamService.getChunkSize();
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("url", download.getDownloadPath());
+        manifest.put("fileName", downloadService.fileName(download));
+        manifest.put("contentType", object.getContentType());
+        manifest.put("contentLength", object.getContentLength());
+        manifest.put("eTag", object.getETag());
+        manifest.put("chunkSize", chunkSize);
+        manifest.put("chunks", (object.getContentLength() + chunkSize - 1) / chunkSize);
+        manifest.put("checksumHeader", CHECKSUM_CRC32C);
+        return ResponseEntity.ok(manifest);
+    }
+    
+    private Download currentUserDownload(String downloadId) {
+        String userId = SecurityUtils.getCurrentUser().map(User::getId).orElse(null);
+        return downloadService.getUserDownload(userId, downloadId);
+    }
+    
+    // Keyframe at or before a playback time, so players can issue seek ranges that start on a decodable frame
+    @GetMapping("/video/{key}/keyframe")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getKeyframe(
+            @PathVariable String key,
+            @RequestParam("t") double seconds,
+            @RequestParam(value = "faststart", defaultValue = "false") boolean faststart) {
+        return ResponseEntity.ok(keyframe(key, seconds, faststart));
+    }
+    
+    @GetMapping("/movies/{movieId}/{quality}/keyframe")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<Map<String, Object>> getMovieKeyframe(
+            @PathVariable String movieId,
+            @PathVariable String quality,
+            @RequestParam("t") double seconds,
+            @RequestParam(value = "faststart", defaultValue = "false") boolean faststart) {
+        return ResponseEntity.ok(keyframe(streamingManifestService.resolveKey(movieId, quality), seconds, faststart));
+    }
+    
+    private Map<String, Object> keyframe(String key, double seconds, boolean faststart) {
+        ObjectMetadata object = videoStreamService.getMetadata(key);
+        MediaIndexService.Keyframe keyframe = mediaIndexService.keyframeAt(object, seconds)
+                .orElseThrow(() -> new ResourceNotFoundException("Keyframe", "time", seconds));
+        long offset = faststart
+                ? mediaIndexService.faststartLayout(object).map(layout -> layout.toPresented(keyframe.offset()))
+                        .orElse(keyframe.offset())
+                : keyframe.offset();
+        return Map.of("time", keyframe.time(), "offset", offset);
+    }
+    
+    @GetMapping(value = "/movies/{movieId}/master.m3u8", produces = HLS_PLAYLIST)
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<String> getMasterPlaylist(@PathVariable String movieId) {
+        return manifest(streamingManifestService.masterPlaylist(movieId));
+    }
+    
+    @GetMapping(value = "/movies/{movieId}/{quality}/playlist.m3u8", produces = HLS_PLAYLIST)
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<String> getMediaPlaylist(@PathVariable String movieId, @PathVariable String quality) {
+        return manifest(streamingManifestService.mediaPlaylist(movieId, quality));
+    }
+    
+    @GetMapping(value = "/movies/{movieId}/manifest.mpd", produces = DASH_MANIFEST)
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<String> getDashManifest(@PathVariable String movieId) {
+        return manifest(streamingManifestService.dashManifest(movieId));
+    }
+    
+    private ResponseEntity<String> manifest(String body) {
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.maxAge(manifestMaxAge, TimeUnit.SECONDS).cachePrivate())
+                .body(body);
+    }
+    
+    private void serve(String key, PlaybackOptions options, String rangeHeader, String ifRange, Principal principal,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long startedNanos = System.nanoTime();
+        
+        // Offloaded streams: the user is authenticated here, the bytes come straight from R2.
+        // Downloads stay proxied for their chunk checksums.
+        Optional<String> redirect = options.download() ? Optional.empty()
+                : videoStreamService.redirectUrl(key, options.quality(), SecurityUtils.getCurrentPlan());
+        if (redirect.isPresent()) {
+            response.setStatus(HttpStatus.FOUND.value());
+            response.setHeader(HttpHeaders.LOCATION, redirect.get());
+            return;
+        }
+        
+        ObjectMetadata object = videoStreamService.getMetadata(key);
+        long contentLength = object.getContentLength();
+        // Before any header is set: while the layout is being built this answers 503 with Retry-After
+        FaststartLayout layout = options.faststart() ? mediaIndexService.faststartLayout(object).orElse(null) : null;
+        
+        response.setContentType(object.getContentType());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        String disposition = options.download()
+                ? ContentDisposition.attachment().filename(options.downloadName(), StandardCharsets.UTF_8).build()
+                        .toString()
+                : "inline";
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, disposition);
+        // Replaces Spring Security's no-store default so clients can keep the bytes and revalidate
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        
+        // Writes ETag/Last-Modified, and answers If-None-Match/If-Modified-Since with 304
+        // (If-Match/If-Unmodified-Since failures with 412) before any range work
+        // The faststart layout is a different representation of the same bytes, so it gets its own ETag
+        String eTag = layout != null ? faststartETag(object.getETag()) : object.getETag();
+        long lastModified = object.getLastModified() != null ? object.getLastModified().toEpochMilli() : -1;
+        if (new ServletWebRequest(request, response).checkNotModified(eTag, lastModified)) {
+            return;
+        }
+        
+        // A resumed download whose copy is stale gets the whole current object instead of a spliced range
+        RangeSelection selection = ifRangeMatches(ifRange, eTag, object)
+                ? RangeSelection.of(rangeHeader, contentLength, maxRanges)
+                : RangeSelection.whole();
+        if (selection.unsatisfiable()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + contentLength);
+            return;
+        }
+        List<ByteRange> ranges = selection.ranges();
+        if (options.snap() && ranges.size() == 1) {
+            ranges = List.of(snapToKeyframe(object, layout, ranges.get(0)));
+        }
+        
+        String viewer = principal != null ? principal.getName() : request.getRemoteAddr();
+        
+        if (ranges.size() > 1) {
+            MultipartRanges body = videoStreamService.prepareMultipart(object, ranges);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType("multipart/byteranges; boundary=" + body.boundary());
+            response.setContentLengthLong(body.contentLength());
+            if (!HttpMethod.HEAD.matches(request.getMethod())) {
+                long requested = ranges.stream().mapToLong(ByteRange::length).sum();
+                StreamObservation observation =
+                        streamMetrics.start(options.movieId(), options.quality(), startedNanos, requested);
+                writeBody(observation, response, out ->
+                        videoStreamService.transferMultipart(viewer, object, layout, body, out, observation));
+            }
+            return;
+        }
+        
+        long start = 0;
+        long end = contentLength - 1;
+        
+        if (ranges.size() == 1) {
+            start = ranges.get(0).start();
+            end = ranges.get(0).end();
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + contentLength);
+        } else {
+            response.setStatus(HttpStatus.OK.value());
+        }
+        response.setContentLengthLong(end - start + 1);
+        
+        boolean head = HttpMethod.HEAD.matches(request.getMethod());
+        if (options.download() && end >= start) {
+            // A HEAD probe never pulls a block from storage just for its checksum
+            Optional<String> checksum = videoStreamService.chunkChecksum(object, start, end, !head);
+            if (checksum.isPresent()) {
+                response.setHeader(CHECKSUM_CRC32C, checksum.get());
+            }
+        }
+        
+        // HEAD probes are answered from metadata alone
+        if (end < start || head) {
+            return;
+        }
+        
+        StreamObservation observation =
+                streamMetrics.start(options.movieId(), options.quality(), startedNanos, end - start + 1);
+        
+        if (layout != null) {
+            // Ranges inside one stored region are plain shifted reads; ones touching the moov are assembled
+            OptionalLong sourceStart = layout.sourceStart(start, end);
+            if (sourceStart.isEmpty()) {
+                long from = start;
+                long to = end;
+                writeBody(observation, response, out ->
+                        videoStreamService.writeRange(viewer, object, layout, from, to, out, observation));
+                return;
+            }
+            end = sourceStart.getAsLong() + (end - start);
+            start = sourceStart.getAsLong();
+        }
+        
+        // sendfile bypasses the bandwidth shaper, so streams of a paced plan take the async path
+        if (!videoStreamService.isPaced(SecurityUtils.getCurrentPlan())
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            Optional<VideoStreamService.LocalSlice> slice =
+                    videoStreamService.localSlice(viewer, object, start, end, observation);
+            if (slice.isPresent()) {
+                observation.handedOff(slice.get().length());
+                // Tomcat sends the file region with sendfile(2) once this method returns
+                request.setAttribute(SENDFILE_FILENAME, slice.get().path().toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START, slice.get().offset());
+                request.setAttribute(SENDFILE_END, slice.get().offset() + slice.get().length());
+                return;
+            }
+        }
+        
+        if (videoStreamService.isAsyncEnabled() && request.isAsyncSupported()) {
+            // Release the Tomcat worker; the response completes from the write listener
+            AsyncContext asyncContext = request.startAsync(request, response);
+            asyncContext.setTimeout(0); // slow clients may take minutes; stalled sockets hit the connector timeout
+            videoStreamService.streamAsync(asyncContext, response.getOutputStream(), viewer,
+                    SecurityUtils.getCurrentPlan(), object, start, end, observation);
+            return;
+        }
+        
+        long from = start;
+        long to = end;
+        writeBody(observation, response, out ->
+                videoStreamService.transferRange(viewer, object, from, to, out, observation));
+    }
+    
+    // Blocking body writes; an IOException here is almost always the client going away
+    private void writeBody(StreamObservation observation, HttpServletResponse response, BodyWriter writer)
+            throws IOException {
+        try {
+            writer.write(observation.wrap(response.getOutputStream()));
+            observation.completed();
+        } catch (IOException e) {
+            observation.aborted();
+            throw e;
+        }
+    }
+    
+    // If-Range holds either a strong ETag or the Last-Modified date of the copy the client has (RFC 9110 13.1.5)
+    private boolean ifRangeMatches(String ifRange, String eTag, ObjectMetadata object) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Weak tags never match
+            return eTag != null && ifRange.equals(eTag);
+        }
+        if (object.getLastModified() == null) {
+            return false;
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return date.toEpochSecond() == object.getLastModified().getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+    
+    private String faststartETag(String eTag) {
+        if (eTag == null) {
+            return null;
+        }
+        return eTag.endsWith("\"") ? eTag.substring(0, eTag.length() - 1) + "-faststart\"" : eTag + "-faststart";
+    }
+    
+    // Moves a seek back to the keyframe it falls in, so decoding can start at the first byte served.
+    // Clients opt in with snap=true and read the actual start from Content-Range.
+    private ByteRange snapToKeyframe(ObjectMetadata object, FaststartLayout layout, ByteRange range) {
+        long source = range.start();
+        if (layout != null) {
+            OptionalLong mapped = layout.sourceStart(range.start(), range.start());
+            if (mapped.isEmpty()) {
+                return range;
+            }
+            source = mapped.getAsLong();
+        }
+        long keyframe = mediaIndexService.snapToKeyframe(object, source);
+        long snapped = layout != null ? layout.toPresented(keyframe) : keyframe;
+        return snapped <= range.start() ? new ByteRange(snapped, range.end()) : range;
+    }
+    
+    private record PlaybackOptions(String movieId, String quality, boolean faststart, boolean snap,
+                                   String downloadName) {
+        
+        boolean download() {
+            return downloadName != null;
+        }
+    }
+    
+    private interface BodyWriter {
+        void write(OutputStream out) throws IOException;
     }
 }
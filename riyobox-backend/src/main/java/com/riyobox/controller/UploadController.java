@@ -1,12 +1,17 @@
 package com.riyobox.controller;
 
+import com.riyobox.exception.BadRequestException;
+import com.riyobox.service.MultipartUploadService;
 import com.riyobox.service.R2StorageService;
+import com.riyobox.service.StreamingUploadService;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -15,6 +20,8 @@ import java.util.Map;
 public class UploadController {
     
     private final R2StorageService r2StorageService;
+    private final MultipartUploadService multipartUploadService;
+    private final StreamingUploadService streamingUploadService;
     
     @GetMapping("/config")
     @PreAuthorize("hasRole('ADMIN')")
@@ -33,10 +40,21 @@ public class UploadController {
         String fileName = request.get("fileName");
         String fileType = request.get("fileType");
         
-        Map<String, String> urls = r2StorageService.generatePresignedUrl(fileName, fileType);
+        // Optional hex SHA-256 of the file; a known one returns the stored copy instead of an upload URL, a new
+        // one binds the upload URL to those bytes (send checksumSha256 back as the x-amz-checksum-sha256 header)
+        Map<String, String> urls = r2StorageService.generatePresignedUrl(fileName, fileType, request.get("sha256"));
         return ResponseEntity.ok(urls);
     }
     
+    // Body: {"files": [{"kind": "thumbnail|poster|video", "fileName": ..., "fileType": ..., "quality": ...,
+    // "sha256": ...}]}; each entry comes back with its key, upload URL and public URL, or marked duplicate
+    @PostMapping("/presigned/batch")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, String>>> generatePresignedUrls(
+            @RequestBody Map<String, List<Map<String, String>>> request) {
+        return ResponseEntity.ok(r2StorageService.generatePresignedUrls(request.get("files")));
+    }
+    
     @PostMapping("/thumbnail")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<Map<String, String>> uploadThumbnail(@RequestParam("file") MultipartFile file) 
@@ -52,4 +70,69 @@ public class UploadController {
         String url = r2StorageService.uploadFile(file, "videos");
         return ResponseEntity.ok(Map.of("url", url));
     }
+    
+    // Same form as /video, but the file goes from the socket to R2 in bounded part buffers instead of through
+    // a temp file; see WebConfig.multipartResolver
+    @PostMapping("/video/stream")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, String>> streamVideo(HttpServletRequest request) throws IOException {
+        String url = streamingUploadService.upload(request.getContentType(), request.getInputStream(), "videos");
+        return ResponseEntity.ok(Map.of("url", url));
+    }
+    
+    // Parallel, resumable uploads for large files: create, presign part URLs in batches, PUT the parts to R2
+    // concurrently, then complete (or abort)
+    @PostMapping("/multipart")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> createMultipartUpload(@RequestBody Map<String, String> request) {
+        // An optional sha256 works as for /presigned: a known one returns the stored copy instead of an upload
+        return ResponseEntity.ok(multipartUploadService.create(request.get("fileName"), request.get("fileType"),
+                parseSize(request.get("size")), request.get("sha256")));
+    }
+    
+    private static long parseSize(String size) {
+        if (size == null) {
+            throw new BadRequestException("Upload size is required");
+        }
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Upload size must be a whole number of bytes");
+        }
+    }
+    
+    @PostMapping("/multipart/{uploadId}/parts")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, Object>>> presignParts(
+            @PathVariable String uploadId,
+            @RequestParam String key,
+            @RequestParam(defaultValue = "1") int from,
+            @RequestParam(defaultValue = "16") int count) {
+        return ResponseEntity.ok(multipartUploadService.presignParts(key, uploadId, from, count));
+    }
+    
+    @GetMapping("/multipart/{uploadId}/parts")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<Map<String, Object>>> listParts(
+            @PathVariable String uploadId,
+            @RequestParam String key) {
+        return ResponseEntity.ok(multipartUploadService.listParts(key, uploadId));
+    }
+    
+    @PostMapping("/multipart/{uploadId}/complete")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, String>> completeMultipartUpload(
+            @PathVariable String uploadId,
+            @RequestParam String key) {
+        return ResponseEntity.ok(Map.of("url", multipartUploadService.complete(key, uploadId)));
+    }
+    
+    @DeleteMapping("/multipart/{uploadId}")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Void> abortMultipartUpload(
+            @PathVariable String uploadId,
+            @RequestParam String key) {
+        multipartUploadService.abort(key, uploadId);
+        return ResponseEntity.ok().build();
+    }
 }
@@ -0,0 +1,72 @@
+package com.riyobox.media;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+
+// A non-faststart MP4 presented with its moov moved in front of the media data. The file keeps its length:
+// [head][moov][middle][tail] is served as [head][relocated moov][middle][tail minus moov], with the moov's
+// chunk offsets into the middle shifted by its size.
+public final class FaststartLayout {
+    
+    private final long insertAt;
+    private final long moovOffset;
+    private final byte[] moov;
+    
+    public FaststartLayout(long insertAt, long moovOffset, byte[] relocatedMoov) {
+        this.insertAt = insertAt;
+        this.moovOffset = moovOffset;
+        this.moov = relocatedMoov;
+    }
+    
+    public long moovSize() {
+        return moov.length;
+    }
+    
+    // Where a byte of the stored file ends up in the presented one
+    public long toPresented(long sourceOffset) {
+        if (sourceOffset >= insertAt && sourceOffset < moovOffset) {
+            return sourceOffset + moov.length;
+        }
+        return sourceOffset;
+    }
+    
+    // Source start of a presented range that lies in one stored region, or empty if it touches the moov
+    // or crosses a region boundary
+    public OptionalLong sourceStart(long start, long end) {
+        List<Piece> pieces = pieces(start, end);
+        if (pieces.size() == 1 && !pieces.get(0).relocatedMoov()) {
+            return OptionalLong.of(pieces.get(0).start());
+        }
+        return OptionalLong.empty();
+    }
+    
+    // Splits presented bytes [start, end] into runs of the stored file and of the relocated moov
+    public List<Piece> pieces(long start, long end) {
+        long moovEnd = insertAt + moov.length;
+        long middleEnd = moovOffset + moov.length;
+        List<Piece> pieces = new ArrayList<>(4);
+        add(pieces, start, end, 0, insertAt - 1, false, 0);
+        add(pieces, start, end, insertAt, moovEnd - 1, true, -insertAt);
+        add(pieces, start, end, moovEnd, middleEnd - 1, false, -moov.length);
+        add(pieces, start, end, middleEnd, Long.MAX_VALUE, false, 0);
+        return pieces;
+    }
+    
+    public byte[] moov() {
+        return moov;
+    }
+    
+    private static void add(List<Piece> pieces, long start, long end, long regionStart, long regionEnd,
+                            boolean relocatedMoov, long shift) {
+        long from = Math.max(start, regionStart);
+        long to = Math.min(end, regionEnd);
+        if (from <= to) {
+            pieces.add(new Piece(relocatedMoov, from + shift, to + shift));
+        }
+    }
+    
+    // Inclusive range, in moov bytes for the relocated moov and in stored-file bytes otherwise
+    public record Piece(boolean relocatedMoov, long start, long end) {
+    }
+}
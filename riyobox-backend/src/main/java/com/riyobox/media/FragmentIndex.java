@@ -0,0 +1,34 @@
+package com.riyobox.media;
+
+import java.util.List;
+
+// Byte layout of a fragmented MP4: the init segment (ftyp + moov), the sidx box and the fragments it lists
+public record FragmentIndex(long initLength, long indexStart, long indexEnd,
+                            List<Segment> segments, List<Mp4Track> tracks) {
+    
+    public double duration() {
+        return segments.stream().mapToDouble(Segment::duration).sum();
+    }
+    
+    public double maxSegmentDuration() {
+        return segments.stream().mapToDouble(Segment::duration).max().orElse(0);
+    }
+    
+    // Bits per second of the busiest fragment, which is what HLS BANDWIDTH means
+    public long peakBandwidth() {
+        return (long) Math.ceil(segments.stream()
+                .filter(segment -> segment.duration() > 0)
+                .mapToDouble(segment -> segment.size() * 8 / segment.duration())
+                .max()
+                .orElse(0));
+    }
+    
+    public long averageBandwidth() {
+        double duration = duration();
+        long bytes = segments.stream().mapToLong(Segment::size).sum();
+        return duration > 0 ? (long) Math.ceil(bytes * 8 / duration) : 0;
+    }
+    
+    public record Segment(long offset, long size, double duration) {
+    }
+}
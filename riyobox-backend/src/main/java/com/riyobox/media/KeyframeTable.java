@@ -0,0 +1,26 @@
+package com.riyobox.media;
+
+import java.util.Arrays;
+
+// Sync samples in file order: decode times in milliseconds and the byte offsets they start at
+public record KeyframeTable(long[] timesMillis, long[] offsets) {
+    
+    public int size() {
+        return offsets.length;
+    }
+    
+    // Last keyframe at or before the given time, or -1
+    public int floorByTime(long millis) {
+        return floor(timesMillis, millis);
+    }
+    
+    // Last keyframe starting at or before the given byte, or -1
+    public int floorByOffset(long offset) {
+        return floor(offsets, offset);
+    }
+    
+    private static int floor(long[] values, long key) {
+        int found = Arrays.binarySearch(values, key);
+        return found >= 0 ? found : -found - 2;
+    }
+}
@@ -0,0 +1,13 @@
+package com.riyobox.media;
+
+// One ISO-BMFF box: offsets are absolute in the file for top-level boxes, relative to the parent body otherwise
+public record Mp4Box(String type, long offset, int headerSize, long size) {
+    
+    public long bodyOffset() {
+        return offset + headerSize;
+    }
+    
+    public long end() {
+        return offset + size;
+    }
+}
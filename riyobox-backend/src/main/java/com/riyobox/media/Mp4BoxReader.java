@@ -0,0 +1,441 @@
+package com.riyobox.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+// Reads ISO-BMFF (MP4) structure through ranged reads: box headers and index boxes only, never media data
+public final class Mp4BoxReader {
+    
+    private static final int MAX_HEADER = 16;
+    private static final int MAX_INDEX_BOX = 64 * 1024 * 1024; // moov of a long film is a few MB
+    private static final int VISUAL_SAMPLE_ENTRY = 78;
+    private static final int AUDIO_SAMPLE_ENTRY = 28;
+    
+    @FunctionalInterface
+    public interface RangeReader {
+        byte[] read(long offset, int length) throws IOException;
+    }
+    
+    private Mp4BoxReader() {
+    }
+    
+    // Top-level boxes up to the first movie fragment; the fragments themselves are listed by sidx
+    public static List<Mp4Box> readTopLevel(RangeReader reader, long fileSize) throws IOException {
+        List<Mp4Box> boxes = new ArrayList<>();
+        long offset = 0;
+        while (offset + 8 <= fileSize) {
+            byte[] header = reader.read(offset, (int) Math.min(MAX_HEADER, fileSize - offset));
+            Mp4Box box = parseHeader(ByteBuffer.wrap(header), offset, fileSize);
+            boxes.add(box);
+            if (box.type().equals("moof")) {
+                break;
+            }
+            offset = box.end();
+        }
+        return boxes;
+    }
+    
+    public static byte[] readBody(RangeReader reader, Mp4Box box) throws IOException {
+        long length = box.size() - box.headerSize();
+        if (length > MAX_INDEX_BOX) {
+            throw new IOException("Box " + box.type() + " is too large to index: " + length + " bytes");
+        }
+        return reader.read(box.bodyOffset(), (int) length);
+    }
+    
+    public static Optional<Mp4Box> find(List<Mp4Box> boxes, String type) {
+        return boxes.stream().filter(box -> box.type().equals(type)).findFirst();
+    }
+    
+    // Boxes inside data[from, to); offsets are indexes into data
+    public static List<Mp4Box> children(byte[] data, long from, long to) throws IOException {
+        List<Mp4Box> boxes = new ArrayList<>();
+        long offset = from;
+        while (offset + 8 <= to) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, (int) offset, (int) (to - offset));
+            Mp4Box box = parseHeader(buffer, offset, to);
+            boxes.add(box);
+            offset = box.end();
+        }
+        return boxes;
+    }
+    
+    public static List<Mp4Box> children(byte[] data, Mp4Box parent) throws IOException {
+        return children(data, parent.bodyOffset(), parent.end());
+    }
+    
+    // Follows a path of box types down from data[from, to)
+    public static Optional<Mp4Box> descend(byte[] data, long from, long to, String... path) throws IOException {
+        Mp4Box current = null;
+        for (String type : path) {
+            List<Mp4Box> boxes = current == null ? children(data, from, to) : children(data, current);
+            Optional<Mp4Box> next = find(boxes, type);
+            if (next.isEmpty()) {
+                return Optional.empty();
+            }
+            current = next.get();
+        }
+        return Optional.ofNullable(current);
+    }
+    
+    // Index of a fragmented MP4 with a sidx box; empty for progressive files, which HLS cannot address by byte range
+    public static Optional<FragmentIndex> readFragmentIndex(RangeReader reader, long fileSize) throws IOException {
+        List<Mp4Box> top = readTopLevel(reader, fileSize);
+        Optional<Mp4Box> moov = find(top, "moov");
+        Optional<Mp4Box> sidx = find(top, "sidx");
+        if (moov.isEmpty() || sidx.isEmpty() || moov.get().end() > sidx.get().offset()) {
+            return Optional.empty();
+        }
+        
+        byte[] moovBody = readBody(reader, moov.get());
+        List<Mp4Track> tracks = parseTracks(moovBody);
+        List<FragmentIndex.Segment> segments = parseSidx(readBody(reader, sidx.get()), sidx.get());
+        return Optional.of(new FragmentIndex(moov.get().end(), sidx.get().offset(), sidx.get().end() - 1,
+                segments, tracks));
+    }
+    
+    public static List<Mp4Track> parseTracks(byte[] moovBody) throws IOException {
+        List<Mp4Track> tracks = new ArrayList<>();
+        for (Mp4Box trak : children(moovBody, 0, moovBody.length)) {
+            if (!trak.type().equals("trak")) {
+                continue;
+            }
+            List<Mp4Box> trakChildren = children(moovBody, trak);
+            Optional<Mp4Box> tkhd = find(trakChildren, "tkhd");
+            Optional<Mp4Box> mdia = find(trakChildren, "mdia");
+            if (tkhd.isEmpty() || mdia.isEmpty()) {
+                continue;
+            }
+            List<Mp4Box> mdiaChildren = children(moovBody, mdia.get());
+            Optional<Mp4Box> mdhd = find(mdiaChildren, "mdhd");
+            Optional<Mp4Box> hdlr = find(mdiaChildren, "hdlr");
+            if (mdhd.isEmpty() || hdlr.isEmpty()) {
+                continue;
+            }
+            
+            ByteBuffer buffer = ByteBuffer.wrap(moovBody);
+            int tkhdBody = (int) tkhd.get().bodyOffset();
+            int trackId = buffer.getInt(tkhdBody + (moovBody[tkhdBody] == 1 ? 20 : 12));
+            
+            int mdhdBody = (int) mdhd.get().bodyOffset();
+            boolean longTimes = moovBody[mdhdBody] == 1;
+            long timescale = Integer.toUnsignedLong(buffer.getInt(mdhdBody + (longTimes ? 20 : 12)));
+            long duration = longTimes
+                    ? buffer.getLong(mdhdBody + 24)
+                    : Integer.toUnsignedLong(buffer.getInt(mdhdBody + 16));
+            String language = language(buffer.getShort(mdhdBody + (longTimes ? 32 : 20)));
+            
+            String handler = fourCc(moovBody, (int) hdlr.get().bodyOffset() + 8);
+            
+            String codecs = null;
+            int width = 0;
+            int height = 0;
+            Optional<Mp4Box> stsd = descend(moovBody, mdia.get().bodyOffset(), mdia.get().end(),
+                    "minf", "stbl", "stsd");
+            if (stsd.isPresent()) {
+                // Full box header (4) and entry count (4) come before the first sample entry
+                List<Mp4Box> entries = children(moovBody, stsd.get().bodyOffset() + 8, stsd.get().end());
+                if (!entries.isEmpty()) {
+                    Mp4Box entry = entries.get(0);
+                    if ("vide".equals(handler)) {
+                        width = Short.toUnsignedInt(buffer.getShort((int) entry.bodyOffset() + 24));
+                        height = Short.toUnsignedInt(buffer.getShort((int) entry.bodyOffset() + 26));
+                    }
+                    codecs = codecs(moovBody, entry, handler);
+                }
+            }
+            tracks.add(new Mp4Track(trackId, handler, timescale, duration, language, codecs, width, height));
+        }
+        return tracks;
+    }
+    
+    // Sync samples of the first video track, from its sample tables (stts, stss, stsc, stsz, stco/co64)
+    public static Optional<KeyframeTable> readKeyframes(byte[] moovBody) throws IOException {
+        Optional<Mp4Box> stbl = Optional.empty();
+        long timescale = 0;
+        for (Mp4Box trak : children(moovBody, 0, moovBody.length)) {
+            if (!trak.type().equals("trak")) {
+                continue;
+            }
+            Optional<Mp4Box> hdlr = descend(moovBody, trak.bodyOffset(), trak.end(), "mdia", "hdlr");
+            Optional<Mp4Box> mdhd = descend(moovBody, trak.bodyOffset(), trak.end(), "mdia", "mdhd");
+            if (hdlr.isPresent() && mdhd.isPresent()
+                    && fourCc(moovBody, (int) hdlr.get().bodyOffset() + 8).equals("vide")) {
+                int mdhdBody = (int) mdhd.get().bodyOffset();
+                timescale = Integer.toUnsignedLong(ByteBuffer.wrap(moovBody)
+                        .getInt(mdhdBody + (moovBody[mdhdBody] == 1 ? 20 : 12)));
+                stbl = descend(moovBody, trak.bodyOffset(), trak.end(), "mdia", "minf", "stbl");
+                break;
+            }
+        }
+        if (stbl.isEmpty() || timescale == 0) {
+            return Optional.empty();
+        }
+        
+        List<Mp4Box> tables = children(moovBody, stbl.get());
+        Optional<Mp4Box> stts = find(tables, "stts");
+        Optional<Mp4Box> stss = find(tables, "stss");
+        Optional<Mp4Box> stsc = find(tables, "stsc");
+        Optional<Mp4Box> stsz = find(tables, "stsz");
+        Optional<Mp4Box> stco = find(tables, "stco");
+        Optional<Mp4Box> co64 = find(tables, "co64");
+        if (stts.isEmpty() || stsc.isEmpty() || stsz.isEmpty() || (stco.isEmpty() && co64.isEmpty())) {
+            return Optional.empty();
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(moovBody);
+        int sttsBody = (int) stts.get().bodyOffset();
+        int sttsCount = buffer.getInt(sttsBody + 4);
+        int stscBody = (int) stsc.get().bodyOffset();
+        int stscCount = buffer.getInt(stscBody + 4);
+        int stszBody = (int) stsz.get().bodyOffset();
+        int uniformSize = buffer.getInt(stszBody + 4);
+        int sampleCount = buffer.getInt(stszBody + 8);
+        boolean wideOffsets = stco.isEmpty();
+        int chunkBody = (int) (wideOffsets ? co64.get() : stco.get()).bodyOffset();
+        int chunkCount = buffer.getInt(chunkBody + 4);
+        int stssBody = stss.map(box -> (int) box.bodyOffset()).orElse(-1);
+        int syncCount = stss.isPresent() ? buffer.getInt(stssBody + 4) : sampleCount;
+        
+        long[] times = new long[syncCount];
+        long[] offsets = new long[syncCount];
+        int found = 0;
+        int sample = 0; // 0-based
+        int syncIndex = 0;
+        int sttsEntry = 0;
+        long sttsLeft = sttsCount > 0 ? Integer.toUnsignedLong(buffer.getInt(sttsBody + 8)) : 0;
+        long decodeTime = 0;
+        int stscEntry = 0;
+        
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            // stsc entries are runs of chunks that share a samples-per-chunk value
+            while (stscEntry + 1 < stscCount && buffer.getInt(stscBody + 8 + (stscEntry + 1) * 12) <= chunk) {
+                stscEntry++;
+            }
+            int samplesInChunk = buffer.getInt(stscBody + 8 + stscEntry * 12 + 4);
+            long offset = wideOffsets
+                    ? buffer.getLong(chunkBody + 8 + (chunk - 1) * 8)
+                    : Integer.toUnsignedLong(buffer.getInt(chunkBody + 8 + (chunk - 1) * 4));
+            
+            for (int i = 0; i < samplesInChunk && sample < sampleCount; i++, sample++) {
+                boolean sync = stssBody < 0
+                        || (syncIndex < syncCount && buffer.getInt(stssBody + 8 + syncIndex * 4) == sample + 1);
+                if (sync && found < syncCount) {
+                    times[found] = decodeTime * 1000 / timescale;
+                    offsets[found] = offset;
+                    found++;
+                    syncIndex++;
+                }
+                offset += uniformSize != 0 ? uniformSize : Integer.toUnsignedLong(buffer.getInt(stszBody + 12 + sample * 4));
+                
+                while (sttsLeft == 0 && sttsEntry + 1 < sttsCount) {
+                    sttsEntry++;
+                    sttsLeft = Integer.toUnsignedLong(buffer.getInt(sttsBody + 8 + sttsEntry * 8));
+                }
+                if (sttsLeft > 0) {
+                    decodeTime += Integer.toUnsignedLong(buffer.getInt(sttsBody + 8 + sttsEntry * 8 + 4));
+                    sttsLeft--;
+                }
+            }
+        }
+        if (found < syncCount) {
+            times = Arrays.copyOf(times, found);
+            offsets = Arrays.copyOf(offsets, found);
+        }
+        return Optional.of(new KeyframeTable(times, offsets));
+    }
+    
+    // Copy of a whole moov box with every chunk offset in [from, to) moved by shift, for relocating the moov
+    public static byte[] relocateMoov(byte[] moovBox, long shift, long from, long to) throws IOException {
+        byte[] relocated = moovBox.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(relocated);
+        Mp4Box moov = children(relocated, 0, relocated.length).get(0);
+        for (Mp4Box trak : children(relocated, moov)) {
+            if (!trak.type().equals("trak")) {
+                continue;
+            }
+            Optional<Mp4Box> stbl = descend(relocated, trak.bodyOffset(), trak.end(), "mdia", "minf", "stbl");
+            if (stbl.isEmpty()) {
+                continue;
+            }
+            for (Mp4Box table : children(relocated, stbl.get())) {
+                int body = (int) table.bodyOffset();
+                if (table.type().equals("stco")) {
+                    int count = buffer.getInt(body + 4);
+                    for (int i = 0; i < count; i++) {
+                        int position = body + 8 + i * 4;
+                        long offset = Integer.toUnsignedLong(buffer.getInt(position));
+                        if (offset >= from && offset < to) {
+                            if (offset + shift > 0xffffffffL) {
+                                throw new IOException("Relocated chunk offset does not fit in stco");
+                            }
+                            buffer.putInt(position, (int) (offset + shift));
+                        }
+                    }
+                } else if (table.type().equals("co64")) {
+                    int count = buffer.getInt(body + 4);
+                    for (int i = 0; i < count; i++) {
+                        int position = body + 8 + i * 8;
+                        long offset = buffer.getLong(position);
+                        if (offset >= from && offset < to) {
+                            buffer.putLong(position, offset + shift);
+                        }
+                    }
+                }
+            }
+        }
+        return relocated;
+    }
+    
+    public static List<FragmentIndex.Segment> parseSidx(byte[] body, Mp4Box sidx) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        int version = buffer.get();
+        buffer.position(8); // flags and reference_ID
+        long timescale = Integer.toUnsignedLong(buffer.getInt());
+        long firstOffset;
+        if (version == 0) {
+            buffer.getInt(); // earliest_presentation_time
+            firstOffset = Integer.toUnsignedLong(buffer.getInt());
+        } else {
+            buffer.getLong();
+            firstOffset = buffer.getLong();
+        }
+        buffer.getShort(); // reserved
+        int count = Short.toUnsignedInt(buffer.getShort());
+        
+        List<FragmentIndex.Segment> segments = new ArrayList<>(count);
+        long offset = sidx.end() + firstOffset;
+        for (int i = 0; i < count; i++) {
+            int reference = buffer.getInt();
+            if (reference < 0) {
+                throw new IOException("Hierarchical sidx is not supported");
+            }
+            long size = reference & 0x7fffffffL;
+            long duration = Integer.toUnsignedLong(buffer.getInt());
+            buffer.getInt(); // SAP flags
+            segments.add(new FragmentIndex.Segment(offset, size, (double) duration / timescale));
+            offset += size;
+        }
+        return segments;
+    }
+    
+    private static Mp4Box parseHeader(ByteBuffer buffer, long offset, long limit) throws IOException {
+        int start = buffer.position();
+        long size = Integer.toUnsignedLong(buffer.getInt(start));
+        String type = new String(buffer.array(), buffer.arrayOffset() + start + 4, 4, StandardCharsets.ISO_8859_1);
+        int headerSize = 8;
+        if (size == 1) {
+            if (buffer.limit() - start < 16) {
+                throw new IOException("Truncated header of box " + type + " at " + offset);
+            }
+            size = buffer.getLong(start + 8);
+            headerSize = 16;
+        } else if (size == 0) {
+            size = limit - offset; // extends to the end of the file
+        }
+        if (size < headerSize || offset + size > limit) {
+            throw new IOException("Malformed box " + type + " at " + offset + " with size " + size);
+        }
+        return new Mp4Box(type, offset, headerSize, size);
+    }
+    
+    // RFC 6381 codec string for the first sample entry, or null when we cannot derive it
+    private static String codecs(byte[] data, Mp4Box entry, String handler) throws IOException {
+        String type = entry.type();
+        int body = (int) entry.bodyOffset();
+        int childrenFrom;
+        if ("vide".equals(handler)) {
+            childrenFrom = body + VISUAL_SAMPLE_ENTRY;
+        } else if ("soun".equals(handler)) {
+            // QuickTime sound sample entry versions 1 and 2 carry extra fields
+            int version = ByteBuffer.wrap(data).getShort(body + 8);
+            childrenFrom = body + AUDIO_SAMPLE_ENTRY + (version == 1 ? 16 : version == 2 ? 36 : 0);
+        } else {
+            return null;
+        }
+        if (childrenFrom > entry.end()) {
+            return null;
+        }
+        List<Mp4Box> boxes = children(data, childrenFrom, entry.end());
+        
+        if (type.equals("avc1") || type.equals("avc3")) {
+            Optional<Mp4Box> avcC = find(boxes, "avcC");
+            if (avcC.isEmpty()) {
+                return null;
+            }
+            int config = (int) avcC.get().bodyOffset();
+            return String.format("%s.%02x%02x%02x", type,
+                    data[config + 1] & 0xff, data[config + 2] & 0xff, data[config + 3] & 0xff);
+        }
+        if (type.equals("mp4a")) {
+            Optional<Mp4Box> esds = find(boxes, "esds");
+            return esds.isPresent() ? audioCodecs(data, esds.get()) : null;
+        }
+        return null;
+    }
+    
+    // Walks ES_Descriptor > DecoderConfigDescriptor > DecoderSpecificInfo (ISO/IEC 14496-1)
+    private static String audioCodecs(byte[] data, Mp4Box esds) {
+        int position = (int) esds.bodyOffset() + 4;
+        int end = (int) esds.end();
+        int objectType = -1;
+        while (position < end) {
+            int tag = data[position++] & 0xff;
+            int length = 0;
+            for (int i = 0; i < 4 && position < end; i++) {
+                int b = data[position++] & 0xff;
+                length = (length << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 0x03) {
+                int flags = data[position + 2] & 0xff;
+                position += 3;
+                if ((flags & 0x80) != 0) {
+                    position += 2;
+                }
+                if ((flags & 0x40) != 0) {
+                    position += 1 + (data[position] & 0xff);
+                }
+                if ((flags & 0x20) != 0) {
+                    position += 2;
+                }
+            } else if (tag == 0x04) {
+                objectType = data[position] & 0xff;
+                position += 13;
+            } else if (tag == 0x05 && objectType == 0x40 && length > 0) {
+                int audioObjectType = (data[position] & 0xff) >> 3;
+                if (audioObjectType == 31 && length > 1) {
+                    audioObjectType = 32 + (((data[position] & 0x07) << 3) | ((data[position + 1] & 0xff) >> 5));
+                }
+                return "mp4a.40." + audioObjectType;
+            } else {
+                position += length;
+            }
+        }
+        return objectType > 0 ? String.format("mp4a.%02x", objectType) : null;
+    }
+    
+    // Packed ISO-639-2/T code from mdhd: three 5-bit letters offset from 0x60
+    private static String language(short packed) {
+        if (packed == 0) {
+            return null;
+        }
+        char[] letters = {
+                (char) (((packed >> 10) & 0x1f) + 0x60),
+                (char) (((packed >> 5) & 0x1f) + 0x60),
+                (char) ((packed & 0x1f) + 0x60)
+        };
+        return new String(letters);
+    }
+    
+    private static String fourCc(byte[] data, int offset) {
+        return new String(data, offset, 4, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,14 @@
+package com.riyobox.media;
+
+// What playlists need to know about a track: handler is "vide" or "soun", codecs an RFC 6381 string or null
+public record Mp4Track(int trackId, String handler, long timescale, long duration, String language,
+                       String codecs, int width, int height) {
+    
+    public boolean isVideo() {
+        return "vide".equals(handler);
+    }
+    
+    public boolean isAudio() {
+        return "soun".equals(handler);
+    }
+}
@@ -28,6 +28,7 @@ public class Download {
     private String movieTitle;
     private String thumbnailUrl;
     private Integer fileSize; // in MB
+    private Long contentLength; // in bytes
     private String quality;
     
     private LocalDateTime downloadedAt;
@@ -0,0 +1,49 @@
+package com.riyobox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+// Container layout and keyframe positions of one version of a stored video, parsed once from its boxes
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "media_indexes")
+public class MediaIndex {
+    
+    @Id
+    private String id; // ObjectMetadata.versionKey()
+    
+    @Indexed
+    private String objectKey;
+    
+    private String eTag;
+    private long contentLength;
+    
+    private boolean fragmented;
+    private boolean faststart; // moov before the media data
+    private long moovOffset;
+    private long moovSize;
+    private long insertAt; // where a relocated moov goes: right after ftyp
+    
+    private long durationMillis;
+    
+    // Parallel arrays, one entry per keyframe, offsets ascending. Stored in MediaIndexChunk documents, since
+    // a long title's table can outgrow the 16MB document limit.
+    @Transient
+    private long[] keyframeTimes;
+    @Transient
+    private long[] keyframeOffsets;
+    private int keyframeCount;
+    private Integer keyframeChunks; // null on indexes stored before the table was chunked
+    
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,35 @@
+package com.riyobox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+// A run of a MediaIndex's keyframe table. Long titles can have more keyframes than fit in one 16MB document,
+// so the table is stored in fixed-size chunks next to the index.
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "media_index_chunks")
+@CompoundIndex(name = "index_seq", def = "{'indexId': 1, 'seq': 1}", unique = true)
+public class MediaIndexChunk {
+    
+    @Id
+    private String id; // indexId:seq
+    
+    private String indexId; // MediaIndex.id
+    
+    @Indexed
+    private String objectKey;
+    
+    private int seq;
+    
+    // Slices of MediaIndex.keyframeTimes and keyframeOffsets
+    private long[] keyframeTimes;
+    private long[] keyframeOffsets;
+}
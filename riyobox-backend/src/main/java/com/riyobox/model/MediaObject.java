@@ -0,0 +1,31 @@
+package com.riyobox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+// One stored object by the hash of its bytes, so a re-upload of the same file reuses it instead of a new copy
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "media_objects")
+public class MediaObject {
+    
+    @Id
+    private String id; // hex SHA-256 of the content
+    
+    @Indexed
+    private String objectKey;
+    
+    private long contentLength;
+    private String contentType;
+    
+    private LocalDateTime createdAt;
+}
@@ -64,6 +64,7 @@ public class Movie {
 
     // Streaming information
     private Integer bitrate; // in kbps
+    private Map<String, Integer> qualityBitrates; // kbps per quality, filled in by the media probe
     private String codec; // H.264, H.265, VP9
     private String container; // mp4, mkv, webm
 
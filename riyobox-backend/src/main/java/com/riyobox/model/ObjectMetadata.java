@@ -0,0 +1,27 @@
+package com.riyobox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+// What HeadObject tells us about a stored object; enough to answer HEAD and build range responses
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ObjectMetadata {
+    
+    private String key;
+    private long contentLength;
+    private String eTag;
+    private String contentType;
+    private Instant lastModified;
+    
+    // Cached blocks are tied to this version of the object, so a re-upload never serves stale bytes
+    public String versionKey() {
+        return eTag != null ? key + "@" + eTag : key;
+    }
+}
@@ -0,0 +1,45 @@
+package com.riyobox.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+// One rendition of a movie waiting to have its container header probed; the collection is the job queue
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "probe_jobs")
+@CompoundIndex(name = "status_next_attempt", def = "{'status': 1, 'nextAttemptAt': 1}")
+public class ProbeJob {
+    
+    public static final String PENDING = "PENDING";
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+    
+    @Id
+    private String id;
+    
+    @Indexed
+    private String movieId;
+    
+    private String quality;
+    private String objectKey;
+    
+    private String status; // PENDING, RUNNING, DONE, FAILED
+    private int attempts;
+    private String lastError;
+    
+    private LocalDateTime nextAttemptAt;
+    private LocalDateTime claimedAt; // a RUNNING job claimed long ago belongs to a node that died
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
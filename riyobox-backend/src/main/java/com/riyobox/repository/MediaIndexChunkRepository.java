@@ -0,0 +1,15 @@
+package com.riyobox.repository;
+
+import com.riyobox.model.MediaIndexChunk;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface MediaIndexChunkRepository extends MongoRepository<MediaIndexChunk, String> {
+    
+    List<MediaIndexChunk> findByIndexIdOrderBySeqAsc(String indexId);
+    
+    void deleteByObjectKey(String objectKey);
+}
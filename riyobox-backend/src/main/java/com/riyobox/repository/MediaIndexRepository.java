@@ -0,0 +1,11 @@
+package com.riyobox.repository;
+
+import com.riyobox.model.MediaIndex;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface MediaIndexRepository extends MongoRepository<MediaIndex, String> {
+    
+    void deleteByObjectKey(String objectKey);
+}
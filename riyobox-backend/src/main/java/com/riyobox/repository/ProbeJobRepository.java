@@ -0,0 +1,16 @@
+package com.riyobox.repository;
+
+import com.riyobox.model.ProbeJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface ProbeJobRepository extends MongoRepository<ProbeJob, String> {
+    
+    List<ProbeJob> findByMovieIdOrderByCreatedAtDesc(String movieId);
+    
+    boolean existsByMovieIdAndQualityAndStatusIn(String movieId, String quality, Collection<String> statuses);
+}
@@ -0,0 +1,69 @@
+package com.riyobox.security;
+
+import com.riyobox.controller.StreamController;
+import com.riyobox.model.User;
+import com.riyobox.service.PlaybackTokenService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.lang.NonNull;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+// Authenticates stream requests that carry a playback token (?pt=) without touching the JWT or Mongo.
+// A missing or invalid token falls through to JwtAuthenticationFilter.
+@Component
+@RequiredArgsConstructor
+public class PlaybackTokenFilter extends OncePerRequestFilter {
+    
+    public static final String TOKEN_PARAMETER = "pt";
+    private static final String STREAM_PREFIX = StreamController.BASE_PATH + "/";
+    
+    private final PlaybackTokenService playbackTokenService;
+    
+    @Override
+    protected boolean shouldNotFilter(@NonNull HttpServletRequest request) {
+        return !streamPath(request).startsWith(STREAM_PREFIX) || request.getParameter(TOKEN_PARAMETER) == null;
+    }
+    
+    @Override
+    protected void doFilterInternal(
+            @NonNull HttpServletRequest request,
+            @NonNull HttpServletResponse response,
+            @NonNull FilterChain filterChain
+    ) throws ServletException, IOException {
+        
+        if (SecurityContextHolder.getContext().getAuthentication() == null) {
+            // The token names the resource below the stream base path, so it only opens the stream it was
+            // issued for
+            String resource = UriUtils.decode(streamPath(request).substring(STREAM_PREFIX.length()),
+                    StandardCharsets.UTF_8);
+            Optional<User> user = playbackTokenService.verify(request.getParameter(TOKEN_PARAMETER), resource,
+                    request.getParameter("quality"));
+            if (user.isPresent()) {
+                UsernamePasswordAuthenticationToken authToken = new UsernamePasswordAuthenticationToken(
+                        user.get(),
+                        null,
+                        user.get().getAuthorities()
+                );
+                SecurityContextHolder.getContext().setAuthentication(authToken);
+            }
+        }
+        
+        filterChain.doFilter(request, response);
+    }
+    
+    // Path below the servlet context path, as controller mappings see it
+    private String streamPath(HttpServletRequest request) {
+        return request.getRequestURI().substring(request.getContextPath().length());
+    }
+}
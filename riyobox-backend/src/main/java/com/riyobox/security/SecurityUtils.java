@@ -0,0 +1,30 @@
+package com.riyobox.security;
+
+import com.riyobox.model.User;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.Optional;
+
+public final class SecurityUtils {
+    
+    private static final String DEFAULT_PLAN = "free";
+    
+    private SecurityUtils() {
+    }
+    
+    // The user set by JwtAuthenticationFilter, without another repository lookup
+    public static Optional<User> getCurrentUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication != null && authentication.getPrincipal() instanceof User user) {
+            return Optional.of(user);
+        }
+        return Optional.empty();
+    }
+    
+    public static String getCurrentPlan() {
+        return getCurrentUser()
+                .map(User::getSubscriptionPlan)
+                .orElse(DEFAULT_PLAN);
+    }
+}
@@ -2,7 +2,6 @@ package com.riyobox.service;
 
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -51,7 +50,7 @@ public class AnalyticsService {
         );
     }
     
-    @Scheduled(fixedRate = 60000) // Update every minute
+    // Not scheduled until the stats are broadcast: it would only compute them and throw them away
     public void updateRealTimeStats() {
         Map<String, Object> stats = getDashboardStats();
         // Broadcast via WebSocket
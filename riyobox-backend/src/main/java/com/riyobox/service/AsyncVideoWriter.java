@@ -0,0 +1,197 @@
+package com.riyobox.service;
+
+import com.riyobox.model.ObjectMetadata;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+
+// Writes a byte range with Servlet non-blocking I/O: no thread is held while the client drains its socket.
+// Blocks come from the memory tiers or the disk cache; ones missing from both are fetched before writing
+// resumes, and a paced stream that is out of tokens resumes on the storage executor once the pacing timer fires.
+@Slf4j
+class AsyncVideoWriter implements WriteListener {
+    
+    private final VideoBlockService videoBlockService;
+    private final ReadAheadPrefetcher readAheadPrefetcher;
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final String viewer;
+    private final ObjectMetadata object;
+    private final StreamPacer pacer;
+    private final StreamObservation observation;
+    private final long end;
+    private final int chunkSize;
+    private final byte[] buffer;
+    
+    private long position;
+    private FileChannel channel;
+    private MemoryBlockCacheService.MemoryBlock memoryBlock;
+    private ByteBuffer memory;
+    private long channelIndex = -1;
+    private long fetchedIndex = -1;
+    private boolean finished;
+    
+    AsyncVideoWriter(VideoBlockService videoBlockService, ReadAheadPrefetcher readAheadPrefetcher,
+                     AsyncContext asyncContext, ServletOutputStream out, String viewer, StreamPacer pacer,
+                     StreamObservation observation, ObjectMetadata object, long start, long end, int bufferSize) {
+        this.videoBlockService = videoBlockService;
+        this.readAheadPrefetcher = readAheadPrefetcher;
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.viewer = viewer;
+        this.object = object;
+        this.pacer = pacer;
+        this.observation = observation;
+        this.position = start;
+        this.end = end;
+        this.chunkSize = videoBlockService.getChunkSize();
+        this.buffer = new byte[bufferSize];
+    }
+    
+    void start() {
+        // The container calls onWritePossible as soon as the socket can take data
+        out.setWriteListener(this);
+    }
+    
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (!finished && out.isReady()) {
+            if (position > end) {
+                observation.completed();
+                finish();
+                return;
+            }
+            
+            long index = position / chunkSize;
+            if (index != channelIndex && !openBlock(index)) {
+                fetchedIndex = index;
+                // Resume from the storage executor once the block is on disk
+                videoBlockService.loadBlockAsync(object, index).whenComplete((path, error) -> {
+                    if (error != null) {
+                        onError(error);
+                        return;
+                    }
+                    resume();
+                });
+                return;
+            }
+            
+            long blockOffset = position - index * chunkSize;
+            int toRead = (int) Math.min(buffer.length, Math.min(end - position + 1, chunkSize - blockOffset));
+            if (pacer != null) {
+                long wait = pacer.reserve(toRead);
+                if (wait > 0) {
+                    pacer.resumeAfter(wait, this::resumeOnStorageExecutor);
+                    return;
+                }
+            }
+            int read = toRead;
+            if (memory != null) {
+                memory.get((int) blockOffset, buffer, 0, toRead);
+            } else {
+                read = channel.read(ByteBuffer.wrap(buffer, 0, toRead), blockOffset);
+                if (read <= 0) {
+                    throw new IOException("Cached block " + index + " of " + object.getKey() + " is truncated");
+                }
+            }
+            out.write(buffer, 0, read);
+            observation.written(read);
+            position += read;
+        }
+    }
+    
+    @Override
+    public synchronized void onError(Throwable error) {
+        if (finished) {
+            return;
+        }
+        log.debug("Stream of {} ended at byte {}: {}", object.getKey(), position, error.getMessage());
+        readAheadPrefetcher.onStreamAborted(viewer, object.getKey());
+        observation.aborted();
+        finish();
+    }
+    
+    private void resume() {
+        try {
+            onWritePossible();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+    
+    // The pacing timer is one thread for every paced stream on the node, so it only hands the resume over; the
+    // disk read and the servlet write run where a slow disk holds up only this stream
+    private void resumeOnStorageExecutor() {
+        try {
+            videoBlockService.execute(this::resume);
+        } catch (RejectedExecutionException e) {
+            onError(e);
+        }
+    }
+    
+    // Positions the writer on a block held in memory or on disk; false if it has to be fetched first
+    private boolean openBlock(long index) throws IOException {
+        closeChannel();
+        CacheTier tier;
+        Optional<MemoryBlockCacheService.MemoryBlock> inMemory = videoBlockService.memoryBlock(object, index);
+        if (inMemory.isPresent()) {
+            memoryBlock = inMemory.get();
+            memory = memoryBlock.data();
+            tier = memoryBlock.tier();
+        } else {
+            Optional<Path> cached = videoBlockService.cachedBlock(object, index);
+            if (cached.isEmpty()) {
+                return false;
+            }
+            try {
+                channel = FileChannel.open(cached.get(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // Evicted since the lookup
+                return false;
+            }
+            tier = CacheTier.DISK;
+        }
+        channelIndex = index;
+        // A block we just fetched counts as an origin read wherever it landed
+        observation.blockRead(index == fetchedIndex ? CacheTier.ORIGIN : tier);
+        readAheadPrefetcher.onBlockServed(viewer, object, index);
+        return true;
+    }
+    
+    private void finish() {
+        finished = true;
+        closeChannel();
+        if (pacer != null) {
+            pacer.close();
+        }
+        asyncContext.complete();
+    }
+    
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close block of {}: {}", object.getKey(), e.getMessage());
+            }
+            channel = null;
+        }
+        // Lets an off-heap slab go back to the pool once its block is evicted
+        if (memoryBlock != null) {
+            memoryBlock.close();
+            memoryBlock = null;
+        }
+        memory = null;
+        channelIndex = -1;
+    }
+}
@@ -0,0 +1,134 @@
+package com.riyobox.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Paces stream output with token buckets: a per-connection limit, a per-plan ceiling, and the node uplink
+// shared fairly between active streams. Waits are timer callbacks, never sleeping threads. Streams of a plan
+// with no ceiling are not paced at all unless a connection or node rate is set.
+@Service
+public class BandwidthShaper {
+    
+    @Value("${app.streaming.shaping.enabled:false}")
+    private boolean enabled;
+    
+    @Value("${app.streaming.shaping.connection-rate:0}")
+    private long connectionRate;
+    
+    @Value("${app.streaming.shaping.node-rate:0}")
+    private long nodeRate;
+    
+    @Value("${app.streaming.shaping.burst-seconds:2}")
+    private double burstSeconds;
+    
+    @Value("${app.streaming.shaping.plans.free:1000000}")
+    private long freeRate;
+    
+    @Value("${app.streaming.shaping.plans.premium:2500000}")
+    private long premiumRate;
+    
+    @Value("${app.streaming.shaping.plans.pro:0}")
+    private long proRate;
+    
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private TokenBucket nodeBucket;
+    private ScheduledExecutorService scheduler;
+    
+    @PostConstruct
+    public void init() {
+        nodeBucket = nodeRate > 0 ? new TokenBucket(nodeRate, nodeRate * burstSeconds) : null;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new CustomizableThreadFactory("stream-pacing-"));
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    // Whether streams of this plan get a pacer; the ones that do not can be sent with sendfile
+    public boolean isPaced(String plan) {
+        return enabled && (limitRate(plan) > 0 || nodeBucket != null);
+    }
+    
+    // One pacer per response, or null if the plan is not paced; it must be closed when the response ends
+    StreamPacer open(String plan) {
+        if (!isPaced(plan)) {
+            return null;
+        }
+        activeStreams.incrementAndGet();
+        return new StreamPacer(this, limitRate(plan));
+    }
+    
+    void schedule(Runnable task, long delayNanos) {
+        scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    void closed() {
+        activeStreams.decrementAndGet();
+    }
+    
+    // Equal split of the uplink; only enforced while the node is congested
+    double fairShare() {
+        return (double) nodeRate / Math.max(1, activeStreams.get());
+    }
+    
+    double burstSeconds() {
+        return burstSeconds;
+    }
+    
+    // Node-wide check, serialised because every stream draws from the same bucket. A stream may always use
+    // idle capacity; once the bucket drops below its reserve, only streams under their fair share proceed.
+    synchronized long reserveNode(int bytes, StreamPacer pacer, long now) {
+        if (nodeBucket == null) {
+            return 0;
+        }
+        boolean congested = nodeBucket.getTokens(now) < nodeRate * burstSeconds / 2;
+        if (congested) {
+            long fairWait = pacer.fairShareWait(bytes, now);
+            if (fairWait > 0) {
+                return fairWait;
+            }
+        }
+        long wait = nodeBucket.nanosUntil(bytes, now);
+        if (wait > 0) {
+            return wait;
+        }
+        nodeBucket.consume(bytes);
+        return 0;
+    }
+    
+    // Plan ceiling capped by the per-connection rate; 0 for none
+    private long limitRate(String plan) {
+        long limit = planRate(plan);
+        if (connectionRate > 0) {
+            limit = limit > 0 ? Math.min(limit, connectionRate) : connectionRate;
+        }
+        return limit;
+    }
+    
+    private long planRate(String plan) {
+        if (plan == null) {
+            return freeRate;
+        }
+        return switch (plan) {
+            case "premium" -> premiumRate;
+            case "pro" -> proRate;
+            default -> freeRate;
+        };
+    }
+}
@@ -0,0 +1,20 @@
+package com.riyobox.service;
+
+// Where a served block came from, fastest first
+public enum CacheTier {
+    
+    HEAP("heap"),
+    OFF_HEAP("offheap"),
+    DISK("disk"),
+    ORIGIN("origin");
+    
+    private final String tag;
+    
+    CacheTier(String tag) {
+        this.tag = tag;
+    }
+    
+    public String getTag() {
+        return tag;
+    }
+}
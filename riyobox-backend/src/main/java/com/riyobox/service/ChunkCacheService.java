@@ -0,0 +1,345 @@
+package com.riyobox.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+// Disk tier of the block cache, with W-TinyLFU admission: new blocks enter a small LRU window, and on leaving
+// it a block only displaces the main region's LRU victim if it has been requested more often. A one-off scan
+// through a rare title churns the window, not the hot set.
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ChunkCacheService {
+    
+    private static final String BLOCK_SUFFIX = ".blk";
+    
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.streaming.chunk-size}")
+    private int chunkSize;
+    
+    @Value("${app.streaming.cache.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.streaming.cache.directory}")
+    private String directory;
+    
+    @Value("${app.streaming.cache.max-size}")
+    private long maxSize;
+    
+    @Value("${app.streaming.cache.window-percent:1}")
+    private double windowPercent;
+    
+    @Value("${app.streaming.cache.pin-millis:10000}")
+    private long pinMillis;
+    
+    private Path root;
+    
+    // Both access-ordered so iteration starts at the least recently used block; guarded by blocks
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Long> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+    // Blocks eviction must leave on disk, with their deadlines in pin order; guarded by blocks
+    private final LinkedHashMap<String, Long> pinned = new LinkedHashMap<>();
+    private long windowSize;
+    private long currentSize;
+    private FrequencySketch sketch;
+    
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+        sketch = new FrequencySketch(maxSize / chunkSize);
+        
+        // Rebuild the index from disk so the cache survives restarts, oldest access first
+        List<Path> existing;
+        try (Stream<Path> files = Files.list(root)) {
+            existing = files.sorted(Comparator.comparing(this::lastModified)).toList();
+        }
+        // Partial writes left behind by a crash are never valid blocks
+        existing.stream()
+                .filter(path -> !path.getFileName().toString().endsWith(BLOCK_SUFFIX))
+                .forEach(this::deleteQuietly);
+        existing = existing.stream()
+                .filter(path -> path.getFileName().toString().endsWith(BLOCK_SUFFIX))
+                .toList();
+        synchronized (blocks) {
+            for (Path path : existing) {
+                long size = Files.size(path);
+                blocks.put(path.getFileName().toString(), size);
+                currentSize += size;
+            }
+            evictIfNeeded();
+        }
+        
+        log.info("Stream chunk cache at {} holds {} blocks ({} bytes of {})",
+                root, blocks.size(), currentSize, maxSize);
+        
+        Gauge.builder("riyobox.stream.cache.bytes", this, ChunkCacheService::getCurrentSize)
+                .description("Bytes held by each block cache tier")
+                .tag("tier", CacheTier.DISK.getTag())
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+    
+    // Presence check that leaves the LRU order untouched
+    public boolean contains(String key, long index) {
+        if (!enabled) {
+            return false;
+        }
+        String fileName = fileName(key, index);
+        synchronized (blocks) {
+            return blocks.containsKey(fileName) || window.containsKey(fileName);
+        }
+    }
+    
+    // Estimated recent request count of a block, cached or not
+    public int frequency(String key, long index) {
+        if (!enabled) {
+            return 0;
+        }
+        String fileName = fileName(key, index);
+        synchronized (blocks) {
+            return sketch.frequency(fileName);
+        }
+    }
+    
+    public Optional<Path> get(String key, long index) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        String fileName = fileName(key, index);
+        synchronized (blocks) {
+            sketch.increment(fileName);
+            if (blocks.get(fileName) == null && window.get(fileName) == null) {
+                return Optional.empty();
+            }
+        }
+        Path path = root.resolve(fileName);
+        try {
+            // Keep the on-disk access order in step so LRU order survives a restart
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            remove(fileName);
+            return Optional.empty();
+        } catch (IOException e) {
+            log.debug("Could not touch cached block {}: {}", fileName, e.getMessage());
+        }
+        return Optional.of(path);
+    }
+    
+    public Path put(String key, long index, ByteBuffer data) throws IOException {
+        String fileName = fileName(key, index);
+        Path target = root.resolve(fileName);
+        Path temp = root.resolve(fileName + "." + UUID.randomUUID() + ".tmp");
+        
+        long size = data.remaining();
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        synchronized (blocks) {
+            if (blocks.containsKey(fileName)) {
+                currentSize += size - blocks.put(fileName, size);
+            } else {
+                Long previous = window.put(fileName, size);
+                long added = size - (previous != null ? previous : 0);
+                windowSize += added;
+                currentSize += added;
+            }
+            evictIfNeeded();
+        }
+        return target;
+    }
+    
+    // Moves a block from the admission window straight into the main region. For blocks wanted before anyone
+    // has requested them, such as pre-warmed ones, whose sketch count is too low to ever win admission.
+    // False if the block is no longer cached.
+    public boolean admit(String key, long index) {
+        if (!enabled) {
+            return false;
+        }
+        String fileName = fileName(key, index);
+        synchronized (blocks) {
+            Long size = window.remove(fileName);
+            if (size == null) {
+                return blocks.containsKey(fileName);
+            }
+            windowSize -= size;
+            blocks.put(fileName, size);
+            evictIfNeeded();
+            return true;
+        }
+    }
+    
+    // Keeps a cached block's file from being unlinked for pin-millis, for readers that open it later: Tomcat's
+    // sendfile opens the file only after the handler has returned. False if the block is no longer cached.
+    public boolean pin(String key, long index) {
+        if (!enabled) {
+            return false;
+        }
+        String fileName = fileName(key, index);
+        synchronized (blocks) {
+            if (!blocks.containsKey(fileName) && !window.containsKey(fileName)) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            pinned.remove(fileName);
+            pinned.put(fileName, now + pinMillis);
+            // Every pin lasts equally long, so the expired ones are at the head
+            Iterator<Long> deadlines = pinned.values().iterator();
+            while (deadlines.hasNext() && deadlines.next() <= now) {
+                deadlines.remove();
+            }
+            return true;
+        }
+    }
+    
+    public void evict(String key, long index) {
+        String fileName = fileName(key, index);
+        remove(fileName);
+        deleteQuietly(root.resolve(fileName));
+    }
+    
+    public long getCurrentSize() {
+        synchronized (blocks) {
+            return currentSize;
+        }
+    }
+    
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    private void remove(String fileName) {
+        synchronized (blocks) {
+            Long size = blocks.remove(fileName);
+            if (size != null) {
+                currentSize -= size;
+            }
+            size = window.remove(fileName);
+            if (size != null) {
+                windowSize -= size;
+                currentSize -= size;
+            }
+        }
+    }
+    
+    private void evictIfNeeded() {
+        long windowMax = (long) (maxSize * windowPercent / 100);
+        Iterator<Map.Entry<String, Long>> candidates = window.entrySet().iterator();
+        // The newest block always stays, since the caller is about to serve it
+        while (windowSize > windowMax && window.size() > 1) {
+            Map.Entry<String, Long> candidate = candidates.next();
+            candidates.remove();
+            windowSize -= candidate.getValue();
+            if (currentSize > maxSize && !blocks.isEmpty() && !isPinned(candidate.getKey())) {
+                String victim = blocks.keySet().iterator().next();
+                if (sketch.frequency(candidate.getKey()) <= sketch.frequency(victim)) {
+                    currentSize -= candidate.getValue();
+                    deleteQuietly(root.resolve(candidate.getKey()));
+                    continue;
+                }
+            }
+            blocks.put(candidate.getKey(), candidate.getValue());
+        }
+        
+        // Anything still over the limit comes out of the main region first, then the window
+        evictEldest(blocks, false);
+        evictEldest(window, true);
+    }
+    
+    private void evictEldest(LinkedHashMap<String, Long> region, boolean isWindow) {
+        Iterator<Map.Entry<String, Long>> iterator = region.entrySet().iterator();
+        while (currentSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if (isPinned(eldest.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            currentSize -= eldest.getValue();
+            if (isWindow) {
+                windowSize -= eldest.getValue();
+            }
+            // Readers that already opened the file keep their handle after the unlink
+            deleteQuietly(root.resolve(eldest.getKey()));
+        }
+    }
+    
+    private boolean isPinned(String fileName) {
+        Long deadline = pinned.get(fileName);
+        return deadline != null && deadline > System.currentTimeMillis();
+    }
+    
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Could not delete cached block {}: {}", path, e.getMessage());
+        }
+    }
+    
+    private FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+    
+    // The chunk size is part of the name so blocks written under an older setting are never misread
+    private String fileName(String key, long index) {
+        return sha256(key) + "-" + chunkSize + "-" + index + BLOCK_SUFFIX;
+    }
+    
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.riyobox.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed-size direct buffers for the off-heap tier, reused instead of dropped. A dropped direct buffer only
+// returns its native memory once the collector finds it unreachable, which under steady eviction can lag far
+// behind new allocations; the pool never allocates more than maxSlabs.
+final class DirectSlabPool {
+    
+    private final int slabSize;
+    private final int maxSlabs;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    
+    DirectSlabPool(int slabSize, int maxSlabs) {
+        this.slabSize = slabSize;
+        this.maxSlabs = maxSlabs;
+    }
+    
+    int slabSize() {
+        return slabSize;
+    }
+    
+    int allocated() {
+        return allocated.get();
+    }
+    
+    // A cleared slab, or null if every slab is in use
+    ByteBuffer acquire() {
+        ByteBuffer slab = free.poll();
+        if (slab != null) {
+            return slab.clear();
+        }
+        if (allocated.incrementAndGet() > maxSlabs) {
+            allocated.decrementAndGet();
+            return null;
+        }
+        return ByteBuffer.allocateDirect(slabSize);
+    }
+    
+    void release(ByteBuffer slab) {
+        free.offer(slab);
+    }
+}
@@ -1,8 +1,11 @@
 package com.riyobox.service;
 
+import com.riyobox.exception.ResourceNotFoundException;
 import com.riyobox.model.Download;
+import com.riyobox.model.ObjectMetadata;
 import com.riyobox.repository.DownloadRepository;
 import lombok.RequiredArgsConstructor;
+import org.bson.types.ObjectId;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import java.time.LocalDateTime;
@@ -12,9 +15,13 @@ import java.util.List;
 @RequiredArgsConstructor
 public class DownloadService {
     
+    private static final long MEGABYTE = 1024 * 1024;
+    
     private final DownloadRepository downloadRepository;
     private final UserService userService;
     private final MovieService movieService;
+    private final StreamingManifestService streamingManifestService;
+    private final ObjectMetadataService objectMetadataService;
     
     public List<Download> getUserDownloads(String userId) {
         return downloadRepository.findByUserId(userId);
@@ -29,20 +36,42 @@ public class DownloadService {
                 .orElseThrow(() -> new RuntimeException("Download not found"));
     }
     
+    // Other users' downloads look the same as missing ones
+    public Download getUserDownload(String userId, String id) {
+        return downloadRepository.findById(id)
+                .filter(download -> download.getUserId().equals(userId))
+                .orElseThrow(() -> new ResourceNotFoundException("Download", "id", id));
+    }
+    
+    public String resolveKey(Download download) {
+        return streamingManifestService.resolveKey(download.getMovieId(), download.getQuality());
+    }
+    
+    public String fileName(Download download) {
+        return String.format("%s_%s.mp4", download.getMovieTitle(), download.getQuality());
+    }
+    
     @Transactional
     public Download createDownload(String userId, String movieId, String quality) {
         // Get movie details
         var movie = movieService.getMovieById(movieId);
         
-        // Create download record
+        // Sizes come from the stored file, which also fails fast for qualities the movie does not have
+        ObjectMetadata object = objectMetadataService.getMetadata(
+                streamingManifestService.resolveKey(movieId, quality));
+        
+        // Create download record; the id is chosen up front so the delivery path can point at it
+        String id = new ObjectId().toHexString();
         Download download = Download.builder()
+                .id(id)
                 .userId(userId)
                 .movieId(movieId)
                 .movieTitle(movie.getTitle())
                 .thumbnailUrl(movie.getThumbnailUrl())
-                .fileSize(calculateFileSize(quality))
+                .fileSize((int) ((object.getContentLength() + MEGABYTE - 1) / MEGABYTE))
+                .contentLength(object.getContentLength())
                 .quality(quality)
-                .downloadPath(generateDownloadPath(userId, movieId, quality))
+                .downloadPath("/api/stream/downloads/" + id)
                 .isCompleted(false)
                 .progress(0)
                 .build();
@@ -88,16 +117,4 @@ public class DownloadService {
         downloadRepository.deleteByUserId(userId);
     }
     
-    private Integer calculateFileSize(String quality) {
-        return switch (quality) {
-            case "480p" -> 500;
-            case "720p" -> 1000;
-            case "1080p" -> 2000;
-            default -> 800;
-        };
-    }
-    
-    private String generateDownloadPath(String userId, String movieId, String quality) {
-        return String.format("/downloads/%s/%s_%s.mp4", userId, movieId, quality);
-    }
 }
@@ -0,0 +1,64 @@
+package com.riyobox.service;
+
+// Count-min sketch of 4-bit counters for TinyLFU admission. Counters are halved after a sample of
+// ten times the capacity, so past popularity fades. Not thread-safe; callers synchronize.
+final class FrequencySketch {
+    
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+    
+    FrequencySketch(long expectedEntries) {
+        // One long of sixteen counters per entry, rounded up to a power of two; all rows share the table
+        int longs = Integer.highestOneBit((int) Math.max(16, Math.min(expectedEntries, 1 << 22)) - 1) << 1;
+        table = new long[longs];
+        counterMask = longs * 16 - 1;
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * Math.max(expectedEntries, 16));
+    }
+    
+    int frequency(Object key) {
+        int hash = key.hashCode();
+        int frequency = 15;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = counter(hash, row);
+            frequency = Math.min(frequency, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xF));
+        }
+        return frequency;
+    }
+    
+    void increment(Object key) {
+        int hash = key.hashCode();
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = counter(hash, row);
+            int shift = (counter & 15) << 2;
+            if (((table[counter >>> 4] >>> shift) & 0xF) != 0xF) {
+                table[counter >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+    
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+    
+    // Each row mixes the key's hash with its own seed and takes the well-mixed high bits
+    private int counter(int hash, int row) {
+        long h = (hash ^ SEEDS[row]) * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 29;
+        h *= SEEDS[row] | 1;
+        return (int) (h >>> 32) & counterMask;
+    }
+}
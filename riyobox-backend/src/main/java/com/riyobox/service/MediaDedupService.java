@@ -0,0 +1,111 @@
+package com.riyobox.service;
+
+import com.riyobox.exception.BadRequestException;
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.model.MediaObject;
+import com.riyobox.repository.MediaObjectRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Optional;
+
+// Content-addressed index of uploaded media: SHA-256 of the bytes to the object that holds them. Uploads look
+// their hash up first and point at the existing object on a hit, so the same trailer or poster is stored once.
+@Service
+@RequiredArgsConstructor
+public class MediaDedupService {
+    
+    private final MediaObjectRepository mediaObjectRepository;
+    private final ObjectMetadataService objectMetadataService;
+    
+    @Value("${app.storage.dedup.enabled:true}")
+    private boolean enabled;
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    public static String hex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
+    // One pass over the stream
+    public static String hash(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return hex(digest);
+    }
+    
+    // The base64 form of a client-supplied hex SHA-256 that S3 checksum headers carry; a malformed hash is
+    // refused rather than signed into an upload that R2 would reject
+    public static String checksumSha256(String contentHash) {
+        try {
+            byte[] digest = HexFormat.of().parseHex(contentHash);
+            if (digest.length == 32) {
+                return Base64.getEncoder().encodeToString(digest);
+            }
+        } catch (IllegalArgumentException e) {
+            // Falls through to the same error as a wrong length
+        }
+        throw new BadRequestException("sha256 must be 64 hex digits");
+    }
+    
+    // The stored object with these bytes, if there is one. Entries whose object has since been deleted from
+    // storage are dropped on the way.
+    public Optional<MediaObject> find(String contentHash) {
+        if (!enabled || contentHash == null) {
+            return Optional.empty();
+        }
+        Optional<MediaObject> known = mediaObjectRepository.findById(contentHash.toLowerCase(Locale.ROOT));
+        if (known.isEmpty()) {
+            return known;
+        }
+        try {
+            objectMetadataService.getMetadata(known.get().getObjectKey());
+            return known;
+        } catch (ResourceNotFoundException e) {
+            mediaObjectRepository.delete(known.get());
+            return Optional.empty();
+        }
+    }
+    
+    // Records a new object; if another upload of the same bytes got there first, its entry is kept
+    public void register(String contentHash, String objectKey, long contentLength, String contentType) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            mediaObjectRepository.insert(MediaObject.builder()
+                    .id(contentHash)
+                    .objectKey(objectKey)
+                    .contentLength(contentLength)
+                    .contentType(contentType)
+                    .createdAt(LocalDateTime.now())
+                    .build());
+        } catch (DuplicateKeyException e) {
+            // Both copies stay readable; only the first is handed out from now on
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.riyobox.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.riyobox.exception.ServiceUnavailableException;
+import com.riyobox.media.FaststartLayout;
+import com.riyobox.media.FragmentIndex;
+import com.riyobox.media.KeyframeTable;
+import com.riyobox.media.Mp4Box;
+import com.riyobox.media.Mp4BoxReader;
+import com.riyobox.media.Mp4Track;
+import com.riyobox.model.MediaIndex;
+import com.riyobox.model.MediaIndexChunk;
+import com.riyobox.model.ObjectMetadata;
+import com.riyobox.repository.MediaIndexChunkRepository;
+import com.riyobox.repository.MediaIndexRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Keyframe index and moov location per object version, built in the background from the MP4 boxes
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MediaIndexService {
+    
+    private static final Set<String> ISO_BMFF_TYPES = Set.of("video/mp4", "video/quicktime", "video/x-m4v", "audio/mp4");
+    
+    // About 2MB of BSON per chunk document
+    private static final int KEYFRAMES_PER_CHUNK = 65536;
+    
+    private final MediaIndexRepository mediaIndexRepository;
+    private final MediaIndexChunkRepository mediaIndexChunkRepository;
+    private final VideoBlockService videoBlockService;
+    
+    @Value("${app.streaming.faststart.enabled:true}")
+    private boolean faststartEnabled;
+    
+    @Value("${app.streaming.faststart.max-cached-moov-bytes:268435456}")
+    private long maxCachedMoovBytes;
+    
+    @Value("${app.streaming.index.threads:2}")
+    private int indexThreads;
+    
+    @Value("${app.streaming.index.max-cached:5000}")
+    private int maxCachedIndexes;
+    
+    @Value("${app.streaming.index.retry-after-seconds:60}")
+    private long retryAfterSeconds;
+    
+    @Value("${app.streaming.faststart.not-ready-retry-seconds:2}")
+    private long notReadyRetrySeconds;
+    
+    private ExecutorService indexExecutor;
+    private final Map<String, CompletableFuture<Optional<MediaIndex>>> builds = new ConcurrentHashMap<>();
+    private final Set<String> relocating = ConcurrentHashMap.newKeySet();
+    private Cache<String, MediaIndex> indexes;
+    
+    // Versions whose index or moov relocation just failed, so requests do not rebuild them over and over
+    private Cache<String, Boolean> failedBuilds;
+    private Cache<String, Boolean> failedRelocations;
+    
+    // Relocated moov boxes by object version, least recently used first
+    private final LinkedHashMap<String, FaststartLayout> layouts = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedMoovBytes;
+    
+    @PostConstruct
+    public void init() {
+        indexExecutor = Executors.newFixedThreadPool(indexThreads, new CustomizableThreadFactory("media-index-"));
+        indexes = Caffeine.newBuilder()
+                .maximumSize(maxCachedIndexes)
+                .build();
+        failedBuilds = Caffeine.newBuilder()
+                .maximumSize(maxCachedIndexes)
+                .expireAfterWrite(Duration.ofSeconds(retryAfterSeconds))
+                .build();
+        failedRelocations = Caffeine.newBuilder()
+                .maximumSize(maxCachedIndexes)
+                .expireAfterWrite(Duration.ofSeconds(retryAfterSeconds))
+                .build();
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        indexExecutor.shutdownNow();
+    }
+    
+    // ISO-BMFF files are the only ones with an index
+    public boolean isIndexable(ObjectMetadata object) {
+        return ISO_BMFF_TYPES.contains(object.getContentType());
+    }
+    
+    // Index of this version, or empty while it is still being built
+    public Optional<MediaIndex> getIndex(ObjectMetadata object) {
+        if (!isIndexable(object)) {
+            return Optional.empty();
+        }
+        MediaIndex index = indexes.getIfPresent(object.versionKey());
+        if (index != null) {
+            return Optional.of(index);
+        }
+        if (builds.containsKey(object.versionKey()) || failedBuilds.getIfPresent(object.versionKey()) != null) {
+            return Optional.empty();
+        }
+        Optional<MediaIndex> stored = load(object.versionKey());
+        if (stored.isPresent()) {
+            indexes.put(object.versionKey(), stored.get());
+            return stored;
+        }
+        buildAsync(object);
+        return Optional.empty();
+    }
+    
+    // Index of this version, waiting for it to be built if need be. For background work only: a build reads
+    // the whole moov from storage, which request threads must not wait on.
+    public Optional<MediaIndex> requireIndex(ObjectMetadata object) {
+        Optional<MediaIndex> index = getIndex(object);
+        if (index.isPresent()) {
+            return index;
+        }
+        CompletableFuture<Optional<MediaIndex>> build = builds.get(object.versionKey());
+        return build != null ? build.join() : Optional.ofNullable(indexes.getIfPresent(object.versionKey()));
+    }
+    
+    // Called after an upload so the index is ready before the first viewer; the lookup runs on the index
+    // executor since callers may be on storage client threads
+    public void indexAsync(ObjectMetadata object) {
+        try {
+            indexExecutor.execute(() -> getIndex(object));
+        } catch (RejectedExecutionException e) {
+            log.debug("Not indexing {}: executor is shut down", object.getKey());
+        }
+    }
+    
+    // For files whose moov follows the media data: the same file with the moov served first. A viewer must get
+    // the same layout on every request of a playback session, so until the index and the relocated moov are
+    // built in the background this throws ServiceUnavailableException instead of serving the stored layout.
+    // Files that cannot be indexed or relocated are served as stored.
+    public Optional<FaststartLayout> faststartLayout(ObjectMetadata object) {
+        if (!faststartEnabled || !ISO_BMFF_TYPES.contains(object.getContentType())
+                || failedRelocations.getIfPresent(object.versionKey()) != null) {
+            return Optional.empty();
+        }
+        Optional<MediaIndex> index = getIndex(object);
+        if (index.isEmpty()) {
+            if (failedBuilds.getIfPresent(object.versionKey()) != null) {
+                return Optional.empty();
+            }
+            throw notReady(object);
+        }
+        if (index.get().isFaststart() || index.get().isFragmented()) {
+            return Optional.empty();
+        }
+        
+        synchronized (layouts) {
+            FaststartLayout layout = layouts.get(object.versionKey());
+            if (layout != null) {
+                return Optional.of(layout);
+            }
+        }
+        relocateAsync(object, index.get());
+        throw notReady(object);
+    }
+    
+    // Byte offset, in the stored file, of the last keyframe at or before the given time
+    public Optional<Keyframe> keyframeAt(ObjectMetadata object, double seconds) {
+        return getIndex(object).flatMap(index -> {
+            KeyframeTable table = table(index);
+            int found = table.floorByTime((long) (seconds * 1000));
+            return found < 0 ? Optional.empty()
+                    : Optional.of(new Keyframe(table.timesMillis()[found] / 1000.0, table.offsets()[found]));
+        });
+    }
+    
+    // Start of the last keyframe at or before a byte, for snapping a seek; the offset itself if none is known
+    public long snapToKeyframe(ObjectMetadata object, long offset) {
+        return getIndex(object).map(index -> {
+            KeyframeTable table = table(index);
+            int found = table.floorByOffset(offset);
+            return found < 0 ? offset : table.offsets()[found];
+        }).orElse(offset);
+    }
+    
+    private ServiceUnavailableException notReady(ObjectMetadata object) {
+        return new ServiceUnavailableException("Faststart layout of " + object.getKey() + " is being prepared",
+                notReadyRetrySeconds);
+    }
+    
+    private void relocateAsync(ObjectMetadata object, MediaIndex index) {
+        if (!relocating.add(object.versionKey())) {
+            return;
+        }
+        try {
+            indexExecutor.execute(() -> {
+                try {
+                    FaststartLayout layout = relocate(object, index);
+                    synchronized (layouts) {
+                        if (layouts.put(object.versionKey(), layout) == null) {
+                            cachedMoovBytes += layout.moovSize();
+                        }
+                        var eldest = layouts.entrySet().iterator();
+                        while (cachedMoovBytes > maxCachedMoovBytes && eldest.hasNext()) {
+                            cachedMoovBytes -= eldest.next().getValue().moovSize();
+                            eldest.remove();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not relocate moov of {}: {}", object.getKey(), e.getMessage());
+                    failedRelocations.put(object.versionKey(), Boolean.TRUE);
+                } finally {
+                    relocating.remove(object.versionKey());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            relocating.remove(object.versionKey());
+        }
+    }
+    
+    private FaststartLayout relocate(ObjectMetadata object, MediaIndex index) throws IOException {
+        byte[] moov = videoBlockService.readRange(object, index.getMoovOffset(), Math.toIntExact(index.getMoovSize()));
+        byte[] relocated = Mp4BoxReader.relocateMoov(moov, index.getMoovSize(), index.getInsertAt(),
+                index.getMoovOffset());
+        return new FaststartLayout(index.getInsertAt(), index.getMoovOffset(), relocated);
+    }
+    
+    private CompletableFuture<Optional<MediaIndex>> buildAsync(ObjectMetadata object) {
+        CompletableFuture<Optional<MediaIndex>> build = new CompletableFuture<>();
+        CompletableFuture<Optional<MediaIndex>> running = builds.putIfAbsent(object.versionKey(), build);
+        if (running != null) {
+            return running;
+        }
+        try {
+            indexExecutor.execute(() -> {
+                try {
+                    build.complete(Optional.of(build(object)));
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not index {}: {}", object.getKey(), e.getMessage());
+                    failedBuilds.put(object.versionKey(), Boolean.TRUE);
+                    build.complete(Optional.empty());
+                } finally {
+                    builds.remove(object.versionKey(), build);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            builds.remove(object.versionKey(), build);
+            build.complete(Optional.empty());
+        }
+        return build;
+    }
+    
+    private MediaIndex build(ObjectMetadata object) throws IOException {
+        Mp4BoxReader.RangeReader reader = (offset, length) -> videoBlockService.readRange(object, offset, length);
+        List<Mp4Box> top = Mp4BoxReader.readTopLevel(reader, object.getContentLength());
+        Optional<Mp4Box> moov = Mp4BoxReader.find(top, "moov");
+        Optional<Mp4Box> mdat = Mp4BoxReader.find(top, "mdat");
+        Optional<Mp4Box> ftyp = Mp4BoxReader.find(top, "ftyp");
+        boolean fragmented = Mp4BoxReader.find(top, "moof").isPresent() || Mp4BoxReader.find(top, "sidx").isPresent();
+        
+        KeyframeTable keyframes = new KeyframeTable(new long[0], new long[0]);
+        long durationMillis = 0;
+        if (fragmented) {
+            // Every fragment listed by sidx starts with a keyframe
+            Optional<FragmentIndex> fragments = Mp4BoxReader.readFragmentIndex(reader, object.getContentLength());
+            if (fragments.isPresent()) {
+                keyframes = fragmentKeyframes(fragments.get());
+                durationMillis = Math.round(fragments.get().duration() * 1000);
+            }
+        } else if (moov.isPresent()) {
+            byte[] moovBody = Mp4BoxReader.readBody(reader, moov.get());
+            keyframes = Mp4BoxReader.readKeyframes(moovBody).orElse(keyframes);
+            durationMillis = Mp4BoxReader.parseTracks(moovBody).stream()
+                    .filter(Mp4Track::isVideo)
+                    .filter(track -> track.timescale() > 0)
+                    .mapToLong(track -> track.duration() * 1000 / track.timescale())
+                    .findFirst()
+                    .orElse(0);
+        }
+        
+        // Files without a moov we can find are stored too, so they are not re-parsed on every request
+        MediaIndex index = MediaIndex.builder()
+                .id(object.versionKey())
+                .objectKey(object.getKey())
+                .eTag(object.getETag())
+                .contentLength(object.getContentLength())
+                .fragmented(fragmented)
+                .faststart(moov.isEmpty() || mdat.isEmpty() || moov.get().offset() < mdat.get().offset())
+                .moovOffset(moov.map(Mp4Box::offset).orElse(0L))
+                .moovSize(moov.map(Mp4Box::size).orElse(0L))
+                .insertAt(ftyp.filter(box -> box.offset() == 0).map(Mp4Box::end).orElse(0L))
+                .durationMillis(durationMillis)
+                .keyframeTimes(keyframes.timesMillis())
+                .keyframeOffsets(keyframes.offsets())
+                .keyframeCount(keyframes.size())
+                .createdAt(LocalDateTime.now())
+                .build();
+        
+        try {
+            save(index);
+        } catch (RuntimeException e) {
+            // Still served from memory; another node or a restart builds it again
+            log.warn("Could not store index of {}: {}", object.getKey(), e.getMessage());
+        }
+        indexes.put(index.getId(), index);
+        return index;
+    }
+    
+    // Chunks first, so a stored index always has its whole keyframe table
+    private void save(MediaIndex index) {
+        // Earlier versions of the object are never served again
+        mediaIndexRepository.deleteByObjectKey(index.getObjectKey());
+        mediaIndexChunkRepository.deleteByObjectKey(index.getObjectKey());
+        
+        List<MediaIndexChunk> chunks = new ArrayList<>();
+        for (int from = 0; from < index.getKeyframeCount(); from += KEYFRAMES_PER_CHUNK) {
+            int to = Math.min(index.getKeyframeCount(), from + KEYFRAMES_PER_CHUNK);
+            int seq = chunks.size();
+            chunks.add(MediaIndexChunk.builder()
+                    .id(index.getId() + ":" + seq)
+                    .indexId(index.getId())
+                    .objectKey(index.getObjectKey())
+                    .seq(seq)
+                    .keyframeTimes(Arrays.copyOfRange(index.getKeyframeTimes(), from, to))
+                    .keyframeOffsets(Arrays.copyOfRange(index.getKeyframeOffsets(), from, to))
+                    .build());
+        }
+        mediaIndexChunkRepository.saveAll(chunks);
+        index.setKeyframeChunks(chunks.size());
+        mediaIndexRepository.save(index);
+    }
+    
+    // Stored index with its keyframe table reassembled; empty if missing, incomplete or in the old single-document
+    // format, all of which are rebuilt
+    private Optional<MediaIndex> load(String versionKey) {
+        Optional<MediaIndex> stored = mediaIndexRepository.findById(versionKey);
+        if (stored.isEmpty() || stored.get().getKeyframeChunks() == null) {
+            return Optional.empty();
+        }
+        MediaIndex index = stored.get();
+        List<MediaIndexChunk> chunks = index.getKeyframeChunks() > 0
+                ? mediaIndexChunkRepository.findByIndexIdOrderBySeqAsc(versionKey)
+                : List.of();
+        if (chunks.size() != index.getKeyframeChunks()) {
+            return Optional.empty();
+        }
+        
+        long[] times = new long[index.getKeyframeCount()];
+        long[] offsets = new long[index.getKeyframeCount()];
+        int filled = 0;
+        for (MediaIndexChunk chunk : chunks) {
+            int length = chunk.getKeyframeOffsets().length;
+            if (filled + length > offsets.length || chunk.getKeyframeTimes().length != length) {
+                return Optional.empty();
+            }
+            System.arraycopy(chunk.getKeyframeTimes(), 0, times, filled, length);
+            System.arraycopy(chunk.getKeyframeOffsets(), 0, offsets, filled, length);
+            filled += length;
+        }
+        if (filled != offsets.length) {
+            return Optional.empty();
+        }
+        index.setKeyframeTimes(times);
+        index.setKeyframeOffsets(offsets);
+        return Optional.of(index);
+    }
+    
+    private KeyframeTable fragmentKeyframes(FragmentIndex fragments) {
+        List<FragmentIndex.Segment> segments = fragments.segments();
+        long[] times = new long[segments.size()];
+        long[] offsets = new long[segments.size()];
+        double time = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            times[i] = Math.round(time * 1000);
+            offsets[i] = segments.get(i).offset();
+            time += segments.get(i).duration();
+        }
+        return new KeyframeTable(times, offsets);
+    }
+    
+    private KeyframeTable table(MediaIndex index) {
+        long[] times = index.getKeyframeTimes() != null ? index.getKeyframeTimes() : new long[0];
+        long[] offsets = index.getKeyframeOffsets() != null ? index.getKeyframeOffsets() : new long[0];
+        return new KeyframeTable(times, offsets);
+    }
+    
+    public record Keyframe(double time, long offset) {
+    }
+}
@@ -0,0 +1,338 @@
+package com.riyobox.service;
+
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.media.FragmentIndex;
+import com.riyobox.media.Mp4Box;
+import com.riyobox.media.Mp4BoxReader;
+import com.riyobox.media.Mp4Track;
+import com.riyobox.model.Movie;
+import com.riyobox.model.ObjectMetadata;
+import com.riyobox.model.ProbeJob;
+import com.riyobox.repository.ProbeJobRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+
+// Post-upload probing of movie renditions. The probe_jobs collection is the queue, so jobs survive restarts
+// and are shared between nodes: each node claims due jobs atomically and runs at most `threads` at a time.
+// A probe reads only the container header with ranged GETs and writes codec, container, duration, bitrate
+// and track languages back to the movie. Every state change is published to /topic/admin/probe-jobs.
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MediaProbeService {
+    
+    private static final String PROGRESS_TOPIC = "/topic/admin/probe-jobs";
+    private static final Set<String> SUBTITLE_HANDLERS = Set.of("text", "sbtl", "subt");
+    private static final byte[] EBML_MAGIC = {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3};
+    
+    private final ProbeJobRepository probeJobRepository;
+    private final MongoTemplate mongoTemplate;
+    private final R2StorageService r2StorageService;
+    private final ObjectMetadataService objectMetadataService;
+    private final ObjectStorageService objectStorageService;
+    private final SimpMessagingTemplate messagingTemplate;
+    
+    @Value("${app.media.probe.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.media.probe.threads:2}")
+    private int threads;
+    
+    @Value("${app.media.probe.max-attempts:5}")
+    private int maxAttempts;
+    
+    @Value("${app.media.probe.retry-base-delay-seconds:30}")
+    private long retryBaseDelaySeconds;
+    
+    @Value("${app.media.probe.stale-after-minutes:10}")
+    private long staleAfterMinutes;
+    
+    private ExecutorService probeExecutor;
+    private Semaphore slots;
+    
+    @PostConstruct
+    public void init() {
+        probeExecutor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("media-probe-"));
+        slots = new Semaphore(threads);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        probeExecutor.shutdownNow();
+    }
+    
+    // Queues a probe of every rendition of the movie, except ones already waiting or running
+    public List<ProbeJob> enqueue(Movie movie) {
+        List<ProbeJob> jobs = new ArrayList<>();
+        if (!enabled || movie.getVideoUrls() == null) {
+            return jobs;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        for (Map.Entry<String, String> rendition : movie.getVideoUrls().entrySet()) {
+            if (probeJobRepository.existsByMovieIdAndQualityAndStatusIn(movie.getId(), rendition.getKey(),
+                    List.of(ProbeJob.PENDING, ProbeJob.RUNNING))) {
+                continue;
+            }
+            ProbeJob job = probeJobRepository.save(ProbeJob.builder()
+                    .movieId(movie.getId())
+                    .quality(rendition.getKey())
+                    .objectKey(r2StorageService.keyFromUrl(rendition.getValue()))
+                    .status(ProbeJob.PENDING)
+                    .nextAttemptAt(now)
+                    .createdAt(now)
+                    .updatedAt(now)
+                    .build());
+            publish(job);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+    
+    public List<ProbeJob> getJobs(String movieId) {
+        return probeJobRepository.findByMovieIdOrderByCreatedAtDesc(movieId);
+    }
+    
+    @Scheduled(fixedDelayString = "${app.media.probe.poll-interval-ms:5000}")
+    public void runDueJobs() {
+        if (!enabled) {
+            return;
+        }
+        releaseStaleJobs();
+        while (slots.tryAcquire()) {
+            ProbeJob job = claimNext();
+            if (job == null) {
+                slots.release();
+                return;
+            }
+            try {
+                probeExecutor.execute(() -> {
+                    try {
+                        run(job);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down; the job goes stale and another node picks it up
+                slots.release();
+                return;
+            }
+        }
+    }
+    
+    // findAndModify, so when several nodes poll at once each job goes to exactly one of them
+    private ProbeJob claimNext() {
+        LocalDateTime now = LocalDateTime.now();
+        Query due = Query.query(Criteria.where("status").is(ProbeJob.PENDING).and("nextAttemptAt").lte(now))
+                .with(Sort.by("nextAttemptAt"));
+        Update claim = new Update()
+                .set("status", ProbeJob.RUNNING)
+                .set("claimedAt", now)
+                .set("updatedAt", now)
+                .inc("attempts", 1);
+        return mongoTemplate.findAndModify(due, claim, FindAndModifyOptions.options().returnNew(true),
+                ProbeJob.class);
+    }
+    
+    // Jobs of a node that died mid-probe go back to the queue
+    private void releaseStaleJobs() {
+        LocalDateTime now = LocalDateTime.now();
+        Query stale = Query.query(Criteria.where("status").is(ProbeJob.RUNNING)
+                .and("claimedAt").lt(now.minusMinutes(staleAfterMinutes)));
+        mongoTemplate.updateMulti(stale, new Update()
+                .set("status", ProbeJob.PENDING)
+                .set("nextAttemptAt", now)
+                .set("updatedAt", now), ProbeJob.class);
+    }
+    
+    private void run(ProbeJob job) {
+        if (job.getAttempts() > maxAttempts) {
+            finish(job, ProbeJob.FAILED, "Gave up after " + maxAttempts + " attempts", null);
+            return;
+        }
+        publish(job);
+        try {
+            writeBack(job, probe(job.getObjectKey()));
+            finish(job, ProbeJob.DONE, null, null);
+        } catch (ResourceNotFoundException e) {
+            // The object is gone; trying again will not bring it back
+            finish(job, ProbeJob.FAILED, e.getMessage(), null);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Probe of {} for movie {} failed: {}", job.getObjectKey(), job.getMovieId(), e.getMessage());
+            if (job.getAttempts() < maxAttempts) {
+                long delay = retryBaseDelaySeconds << (job.getAttempts() - 1);
+                finish(job, ProbeJob.PENDING, e.getMessage(), LocalDateTime.now().plusSeconds(delay));
+            } else {
+                finish(job, ProbeJob.FAILED, e.getMessage(), null);
+            }
+        }
+    }
+    
+    private void finish(ProbeJob job, String status, String error, LocalDateTime nextAttemptAt) {
+        job.setStatus(status);
+        job.setLastError(error);
+        job.setNextAttemptAt(nextAttemptAt);
+        job.setUpdatedAt(LocalDateTime.now());
+        probeJobRepository.save(job);
+        publish(job);
+    }
+    
+    private void publish(ProbeJob job) {
+        messagingTemplate.convertAndSend(PROGRESS_TOPIC, job);
+    }
+    
+    // Container facts of one object, from ranged reads of its header boxes; media data is never read
+    private MediaProbe probe(String key) throws IOException {
+        ObjectMetadata object = objectMetadataService.getMetadata(key);
+        Mp4BoxReader.RangeReader reader = (offset, length) -> read(object, offset, length);
+        
+        byte[] head = reader.read(0, (int) Math.min(64, object.getContentLength()));
+        if (startsWith(head, EBML_MAGIC)) {
+            // Matroska and WebM: only the document type in the EBML header is worth a read
+            String docType = new String(head, StandardCharsets.ISO_8859_1).contains("webm") ? "webm" : "mkv";
+            return new MediaProbe(docType, null, 0, object.getContentLength(), List.of(), null, List.of());
+        }
+        
+        List<Mp4Box> top = Mp4BoxReader.readTopLevel(reader, object.getContentLength());
+        Optional<Mp4Box> moov = Mp4BoxReader.find(top, "moov");
+        if (moov.isEmpty()) {
+            throw new IOException(key + " has no moov box");
+        }
+        Optional<Mp4Box> ftyp = Mp4BoxReader.find(top, "ftyp");
+        String brand = ftyp.isPresent() && ftyp.get().size() - ftyp.get().headerSize() >= 4
+                ? new String(reader.read(ftyp.get().bodyOffset(), 4), StandardCharsets.US_ASCII)
+                : "";
+        
+        List<Mp4Track> tracks = Mp4BoxReader.parseTracks(Mp4BoxReader.readBody(reader, moov.get()));
+        Optional<Mp4Track> video = tracks.stream().filter(Mp4Track::isVideo).findFirst();
+        double seconds = video.filter(track -> track.timescale() > 0)
+                .map(track -> (double) track.duration() / track.timescale())
+                .orElse(0.0);
+        if (seconds == 0) {
+            // Fragmented files often leave the track duration empty; sidx has it
+            seconds = Mp4BoxReader.readFragmentIndex(reader, object.getContentLength())
+                    .map(FragmentIndex::duration)
+                    .orElse(0.0);
+        }
+        
+        Predicate<Mp4Track> subtitles = track -> SUBTITLE_HANDLERS.contains(track.handler());
+        return new MediaProbe(
+                brand.equals("qt  ") ? "mov" : "mp4",
+                video.map(Mp4Track::codecs).map(this::codecName).orElse(null),
+                seconds,
+                object.getContentLength(),
+                languages(tracks, Mp4Track::isAudio),
+                tracks.stream().anyMatch(subtitles),
+                languages(tracks, subtitles));
+    }
+    
+    private byte[] read(ObjectMetadata object, long offset, int length) throws IOException {
+        if (length == 0) {
+            return new byte[0];
+        }
+        try {
+            return objectStorageService.getRange(object.getKey(), offset, offset + length - 1, object.getETag())
+                    .join();
+        } catch (CompletionException e) {
+            Throwable cause = ObjectStorageService.unwrap(e);
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Could not read " + object.getKey() + ": " + cause.getMessage(), cause);
+        }
+    }
+    
+    private boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private List<String> languages(List<Mp4Track> tracks, Predicate<Mp4Track> filter) {
+        return tracks.stream()
+                .filter(filter)
+                .map(Mp4Track::language)
+                .filter(language -> language != null && !language.equals("und"))
+                .distinct()
+                .toList();
+    }
+    
+    // RFC 6381 codecs string to the names the catalog uses
+    private String codecName(String codecs) {
+        String sampleEntry = codecs.split("\\.", 2)[0];
+        return switch (sampleEntry) {
+            case "avc1", "avc3" -> "H.264";
+            case "hvc1", "hev1" -> "H.265";
+            case "vp09" -> "VP9";
+            case "av01" -> "AV1";
+            default -> sampleEntry;
+        };
+    }
+    
+    // Field updates rather than a saved Movie, so jobs for different qualities of one movie cannot undo each
+    // other's writes or an editor's concurrent changes
+    private void writeBack(ProbeJob job, MediaProbe probe) {
+        Update update = new Update()
+                .set("container", probe.container())
+                .set("updatedAt", LocalDateTime.now());
+        if (probe.hasSubtitles() != null) {
+            update.set("hasSubtitles", probe.hasSubtitles());
+        }
+        if (probe.codec() != null) {
+            update.set("codec", probe.codec());
+        }
+        if (probe.seconds() > 0) {
+            int kbps = (int) Math.round(probe.contentLength() * 8 / probe.seconds() / 1000);
+            update.set("duration", (int) Math.ceil(probe.seconds() / 60));
+            update.set("qualityBitrates." + job.getQuality(), kbps);
+            // The movie-level bitrate is that of its best rendition
+            update.max("bitrate", kbps);
+        }
+        if (!probe.audioLanguages().isEmpty()) {
+            update.set("audioLanguages", probe.audioLanguages());
+            update.set("defaultAudioLanguage", probe.audioLanguages().get(0));
+        }
+        if (!probe.subtitleLanguages().isEmpty()) {
+            update.set("subtitleLanguages", probe.subtitleLanguages());
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(job.getMovieId())), update, Movie.class);
+    }
+    
+    private record MediaProbe(String container, String codec, double seconds, long contentLength,
+                              List<String> audioLanguages, Boolean hasSubtitles, List<String> subtitleLanguages) {
+    }
+}
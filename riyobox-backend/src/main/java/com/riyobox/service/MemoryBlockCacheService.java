@@ -0,0 +1,176 @@
+package com.riyobox.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory tiers above the disk cache, both Caffeine caches (W-TinyLFU) weighed in bytes. The leading blocks
+// of each file, which hold the MP4 header and first segment of faststart files, stay on-heap; all others go
+// into pooled direct buffers off-heap, which the collector never copies or scans. An off-heap block goes back
+// to the pool once it is evicted and the last reader has closed it.
+@Service
+@RequiredArgsConstructor
+public class MemoryBlockCacheService {
+    
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.streaming.chunk-size}")
+    private int chunkSize;
+    
+    @Value("${app.streaming.cache.memory.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.streaming.cache.memory.heap-max-size:268435456}")
+    private long heapMaxSize;
+    
+    @Value("${app.streaming.cache.memory.off-heap-max-size:1073741824}")
+    private long offHeapMaxSize;
+    
+    @Value("${app.streaming.cache.memory.leading-blocks:2}")
+    private int leadingBlocks;
+    
+    private Cache<String, ByteBuffer> heap;
+    private Cache<String, OffHeapBlock> offHeap;
+    private DirectSlabPool slabs;
+    
+    @PostConstruct
+    public void init() {
+        heap = Caffeine.newBuilder()
+                .maximumWeight(heapMaxSize)
+                .weigher((String key, ByteBuffer data) -> data.capacity())
+                .recordStats()
+                .build();
+        monitor(heap, CacheTier.HEAP);
+        
+        slabs = new DirectSlabPool(chunkSize, (int) Math.min(Integer.MAX_VALUE, offHeapMaxSize / chunkSize));
+        offHeap = Caffeine.newBuilder()
+                .maximumWeight(offHeapMaxSize)
+                .weigher((String key, OffHeapBlock block) -> slabs.slabSize())
+                .removalListener((String key, OffHeapBlock block, RemovalCause cause) -> {
+                    if (block != null) {
+                        block.release();
+                    }
+                })
+                .recordStats()
+                .build();
+        monitor(offHeap, CacheTier.OFF_HEAP);
+        Gauge.builder("riyobox.stream.cache.offheap.slabs", slabs, DirectSlabPool::allocated)
+                .description("Direct buffers allocated for the off-heap tier, cached or still being read")
+                .register(meterRegistry);
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    // Read-only view of a block, or empty; each lookup counts towards the block's admission frequency. The
+    // block must be closed once read, after which its buffer may be reused for another block.
+    public Optional<MemoryBlock> get(String key, long index) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        if (tierFor(index) == CacheTier.HEAP) {
+            ByteBuffer data = heap.getIfPresent(key + "#" + index);
+            return data != null
+                    ? Optional.of(new MemoryBlock(data.asReadOnlyBuffer(), CacheTier.HEAP, () -> { }))
+                    : Optional.empty();
+        }
+        OffHeapBlock block = offHeap.getIfPresent(key + "#" + index);
+        // Evicted and returned to the pool since the lookup
+        if (block == null || !block.retain()) {
+            return Optional.empty();
+        }
+        return Optional.of(new MemoryBlock(block.data.asReadOnlyBuffer(), CacheTier.OFF_HEAP, block::release));
+    }
+    
+    // Presence check that neither counts as an access nor touches hit statistics
+    public boolean contains(String key, long index) {
+        return enabled && (tierFor(index) == CacheTier.HEAP ? heap : offHeap).asMap().containsKey(key + "#" + index);
+    }
+    
+    // Copies the block in; Caffeine may still turn it away if it is colder than what it would evict. Skipped
+    // off-heap while every slab is cached or still being read.
+    public void put(String key, long index, ByteBuffer data) {
+        if (!enabled) {
+            return;
+        }
+        ByteBuffer source = data.duplicate();
+        if (tierFor(index) == CacheTier.HEAP) {
+            ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+            copy.put(source).flip();
+            heap.put(key + "#" + index, copy);
+        } else if (offHeapMaxSize > 0 && source.remaining() <= slabs.slabSize()) {
+            ByteBuffer slab = slabs.acquire();
+            if (slab == null) {
+                return;
+            }
+            slab.put(source).flip();
+            offHeap.put(key + "#" + index, new OffHeapBlock(slab, slabs));
+        }
+    }
+    
+    private CacheTier tierFor(long index) {
+        return index < leadingBlocks ? CacheTier.HEAP : CacheTier.OFF_HEAP;
+    }
+    
+    private void monitor(Cache<String, ?> cache, CacheTier tier) {
+        // cache.gets{result=hit|miss} gives the tier's hit rate
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "stream-" + tier.getTag());
+        Gauge.builder("riyobox.stream.cache.bytes", cache,
+                        c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L))
+                .description("Bytes held by each block cache tier")
+                .tag("tier", tier.getTag())
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+    
+    public record MemoryBlock(ByteBuffer data, CacheTier tier, Runnable release) implements AutoCloseable {
+        
+        @Override
+        public void close() {
+            release.run();
+        }
+    }
+    
+    // A pooled slab shared by the cache and its readers; the last to let go returns it to the pool
+    private static final class OffHeapBlock {
+        
+        private final ByteBuffer data;
+        private final DirectSlabPool pool;
+        private final AtomicInteger references = new AtomicInteger(1); // the cache's own
+        
+        private OffHeapBlock(ByteBuffer data, DirectSlabPool pool) {
+            this.data = data;
+            this.pool = pool;
+        }
+        
+        private boolean retain() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                pool.release(data);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.riyobox.service;
 
 import com.riyobox.model.Movie;
+import com.riyobox.model.ProbeJob;
 import com.riyobox.model.User;
 import com.riyobox.model.dto.MovieDTO;
 import com.riyobox.repository.MovieRepository;
@@ -10,6 +11,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -19,6 +21,8 @@ public class MovieService {
     
     private final MovieRepository movieRepository;
     private final UserService userService;
+    private final PrewarmService prewarmService;
+    private final MediaProbeService mediaProbeService;
     
     public List<Movie> getAllMovies() {
         return movieRepository.findAll();
@@ -61,18 +65,33 @@ public class MovieService {
     public Movie createMovie(Movie movie) {
         movie.setCreatedAt(LocalDateTime.now());
         movie.setUpdatedAt(LocalDateTime.now());
-        return movieRepository.save(movie);
+        Movie saved = movieRepository.save(movie);
+        prewarmService.prewarmAsync(saved);
+        mediaProbeService.enqueue(saved);
+        return saved;
     }
     
     @Transactional
     public Movie updateMovie(String id, Movie movieDetails) {
         Movie movie = getMovieById(id);
+        boolean newlyFeatured = Boolean.TRUE.equals(movieDetails.getIsFeatured())
+                && !Boolean.TRUE.equals(movie.getIsFeatured());
         
         movie.setTitle(movieDetails.getTitle());
         movie.setDescription(movieDetails.getDescription());
         movie.setThumbnailUrl(movieDetails.getThumbnailUrl());
         movie.setVideoUrl(movieDetails.getVideoUrl());
-        movie.setDuration(movieDetails.getDuration());
+        // Duration, bitrate, codec, container and track languages belong to the media probe; an edit form
+        // echoing them back must not overwrite what the probe read from the files
+        boolean renditionsChanged = movieDetails.getVideoUrls() != null
+                && !movieDetails.getVideoUrls().equals(movie.getVideoUrls());
+        if (renditionsChanged) {
+            movie.setVideoUrls(movieDetails.getVideoUrls());
+            movie.setVideoQualities(new ArrayList<>(movieDetails.getVideoUrls().keySet()));
+            if (movie.getQualityBitrates() != null) {
+                movie.getQualityBitrates().keySet().retainAll(movieDetails.getVideoUrls().keySet());
+            }
+        }
         movie.setReleaseYear(movieDetails.getReleaseYear());
         movie.setCategories(movieDetails.getCategories());
         movie.setActors(movieDetails.getActors());
@@ -81,7 +100,23 @@ public class MovieService {
         movie.setIsSomaliOriginal(movieDetails.getIsSomaliOriginal());
         movie.setUpdatedAt(LocalDateTime.now());
         
-        return movieRepository.save(movie);
+        Movie saved = movieRepository.save(movie);
+        if (newlyFeatured) {
+            prewarmService.prewarmAsync(saved);
+        }
+        if (renditionsChanged) {
+            mediaProbeService.enqueue(saved);
+        }
+        return saved;
+    }
+    
+    // Re-reads codec, duration, bitrate and track languages from the stored renditions
+    public List<ProbeJob> probeMovie(String id) {
+        return mediaProbeService.enqueue(getMovieById(id));
+    }
+    
+    public List<ProbeJob> getProbeJobs(String id) {
+        return mediaProbeService.getJobs(id);
     }
     
     @Transactional
@@ -0,0 +1,167 @@
+package com.riyobox.service;
+
+import org.springframework.http.ContentDisposition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Incremental multipart/form-data parser (RFC 7578): parts are read one after another straight off the request
+// stream through a fixed buffer, so a part of any size costs no more memory than the buffer
+class MultipartBodyReader {
+    
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_HEADER_BYTES = 16384;
+    
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean finished;
+    private Map<String, String> headers = Map.of();
+    
+    MultipartBodyReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.buffer = new byte[BUFFER_SIZE + delimiter.length];
+        // Every delimiter but the first follows a CRLF; starting with one lets a single search find them all
+        buffer[limit++] = '\r';
+        buffer[limit++] = '\n';
+    }
+    
+    // Moves to the next part, skipping the rest of the current one; false once the closing delimiter is read
+    boolean nextPart() throws IOException {
+        if (finished) {
+            return false;
+        }
+        byte[] skip = new byte[8192];
+        while (readBody(skip, 0, skip.length) >= 0) {
+            // Preamble or unread body
+        }
+        pos += delimiter.length;
+        if (!ensure(2)) {
+            throw new EOFException("Multipart body ends inside a delimiter");
+        }
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return false;
+        }
+        readLine(); // CRLF, after optional transport padding
+        
+        Map<String, String> partHeaders = new HashMap<>();
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart part headers are too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                partHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        headers = partHeaders;
+        return true;
+    }
+    
+    String fileName() {
+        String disposition = headers.get("content-disposition");
+        return disposition != null ? ContentDisposition.parse(disposition).getFilename() : null;
+    }
+    
+    String contentType() {
+        return headers.get("content-type");
+    }
+    
+    // Body of the current part; ends at the next delimiter
+    InputStream partStream() {
+        return new InputStream() {
+            
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : readBody(b, off, len);
+            }
+        };
+    }
+    
+    // Copies body bytes that cannot be the start of a delimiter; -1 when the delimiter is next
+    private int readBody(byte[] b, int off, int len) throws IOException {
+        if (!ensure(delimiter.length)) {
+            throw new EOFException("Multipart body ends before its closing delimiter");
+        }
+        int found = indexOfDelimiter();
+        if (found == pos) {
+            return -1;
+        }
+        // Without a match, the last delimiter.length - 1 bytes may be a delimiter cut off by the buffer end
+        int available = found >= 0 ? found - pos : limit - pos - delimiter.length + 1;
+        int count = Math.min(len, available);
+        System.arraycopy(buffer, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+    
+    private int indexOfDelimiter() {
+        outer:
+        for (int i = pos; i <= limit - delimiter.length; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            if (!ensure(1)) {
+                throw new EOFException("Multipart body ends inside part headers");
+            }
+            byte next = buffer[pos++];
+            if (next == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            if (line.size() >= MAX_HEADER_BYTES) {
+                throw new IOException("Multipart header line is too long");
+            }
+            line.write(next);
+        }
+    }
+    
+    // Makes at least n unread bytes available, reading as much as fits; false if the stream ends first
+    private boolean ensure(int n) throws IOException {
+        if (limit - pos >= n) {
+            return true;
+        }
+        System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < n) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+}
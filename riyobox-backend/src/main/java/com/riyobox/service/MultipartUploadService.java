@@ -0,0 +1,303 @@
+package com.riyobox.service;
+
+import com.riyobox.exception.BadRequestException;
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.model.MediaObject;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.UploadPartPresignRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Large uploads as S3 multipart uploads: the server creates the upload and presigns part URLs in batches,
+// the uploader PUTs parts straight to R2 in parallel and resumes by asking which parts arrived, and the
+// server completes the upload from R2's own part list. Uploads nobody finished are aborted by a sweeper
+// so their parts stop taking storage. The key and size declared at create time are kept in Redis, and an
+// upload only completes if its parts add up to them. A SHA-256 given at create time either returns the stored
+// copy of those bytes right away, or is checked against the completed object before it enters the dedup index:
+// a multipart object has no whole-file checksum R2 could enforce.
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MultipartUploadService {
+    
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MAX_PARTS = 10000;
+    
+    private final S3Client s3Client;
+    private final S3Presigner s3Presigner;
+    private final R2StorageService r2StorageService;
+    private final MediaDedupService mediaDedupService;
+    private final RedisTemplate<String, Object> redisTemplate;
+    
+    @Value("${app.storage.multipart.part-size:67108864}")
+    private long partSize;
+    
+    @Value("${app.storage.multipart.url-ttl-minutes:60}")
+    private long urlTtlMinutes;
+    
+    @Value("${app.storage.multipart.max-urls-per-call:100}")
+    private int maxUrlsPerCall;
+    
+    @Value("${app.storage.multipart.abandon-after-hours:24}")
+    private long abandonAfterHours;
+    
+    // Reads completed objects back to check the SHA-256 their uploader declared
+    private ExecutorService verifyExecutor;
+    
+    @PostConstruct
+    public void init() {
+        verifyExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("upload-verify-"));
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        verifyExecutor.shutdownNow();
+    }
+    
+    public Map<String, Object> create(String fileName, String contentType, long size, String contentHash) {
+        if (size <= 0) {
+            throw new BadRequestException("Upload size must be positive");
+        }
+        if (contentHash != null) {
+            MediaDedupService.checksumSha256(contentHash);
+            Optional<MediaObject> existing = mediaDedupService.find(contentHash);
+            if (existing.isPresent()) {
+                Map<String, Object> duplicate = new LinkedHashMap<>();
+                duplicate.put("key", existing.get().getObjectKey());
+                duplicate.put("publicUrl", r2StorageService.getPublicUrl(existing.get().getObjectKey()));
+                duplicate.put("duplicate", true);
+                return duplicate;
+            }
+        }
+        String folder = contentType != null && contentType.startsWith("video/") ? "videos" : "uploads";
+        String key = folder + "/" + UUID.randomUUID() + "/" + fileName;
+        long chosenPartSize = partSize(size);
+        
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(r2StorageService.getBucketName())
+                .key(key)
+                .contentType(contentType)
+                .build()).uploadId();
+        long partCount = (size + chosenPartSize - 1) / chosenPartSize;
+        String declared = declaredKey(uploadId);
+        redisTemplate.opsForHash().put(declared, "key", key);
+        redisTemplate.opsForHash().put(declared, "size", size);
+        redisTemplate.opsForHash().put(declared, "partCount", partCount);
+        if (contentHash != null) {
+            redisTemplate.opsForHash().put(declared, "sha256", contentHash.toLowerCase(Locale.ROOT));
+            if (contentType != null) {
+                redisTemplate.opsForHash().put(declared, "contentType", contentType);
+            }
+        }
+        // Outlives the upload itself, which the sweeper aborts after abandonAfterHours
+        redisTemplate.expire(declared, abandonAfterHours + 1, TimeUnit.HOURS);
+        
+        Map<String, Object> upload = new LinkedHashMap<>();
+        upload.put("uploadId", uploadId);
+        upload.put("key", key);
+        upload.put("partSize", chosenPartSize);
+        upload.put("partCount", partCount);
+        upload.put("publicUrl", r2StorageService.getPublicUrl(key));
+        return upload;
+    }
+    
+    // R2 wants every part but the last to be the same size, at least 5 MiB, and at most 10,000 parts
+    private long partSize(long size) {
+        long needed = Math.max(Math.max(partSize, MIN_PART_SIZE), (size + MAX_PARTS - 1) / MAX_PARTS);
+        long mebibyte = 1024 * 1024;
+        return (needed + mebibyte - 1) / mebibyte * mebibyte;
+    }
+    
+    // One presigned PUT URL per part, for parts [firstPart, firstPart + count) of an upload created here
+    public List<Map<String, Object>> presignParts(String key, String uploadId, int firstPart, int count) {
+        // Uploads created before part counts were recorded are only held to R2's own limit
+        Object declaredParts = declaredUpload(key, uploadId).get("partCount");
+        long partCount = declaredParts instanceof Number number ? number.longValue() : MAX_PARTS;
+        if (firstPart < 1 || count < 1 || firstPart > partCount) {
+            throw new BadRequestException("Part numbers must be between 1 and " + partCount);
+        }
+        long lastPart = Math.min(partCount, (long) firstPart + Math.min(count, maxUrlsPerCall) - 1);
+        List<Map<String, Object>> urls = new ArrayList<>();
+        for (int partNumber = firstPart; partNumber <= lastPart; partNumber++) {
+            UploadPartPresignRequest presignRequest = UploadPartPresignRequest.builder()
+                    .signatureDuration(Duration.ofMinutes(urlTtlMinutes))
+                    .uploadPartRequest(UploadPartRequest.builder()
+                            .bucket(r2StorageService.getBucketName())
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .build())
+                    .build();
+            urls.add(Map.of("partNumber", partNumber,
+                    "url", s3Presigner.presignUploadPart(presignRequest).url().toString()));
+        }
+        return urls;
+    }
+    
+    // Parts R2 already has, so a resumed upload only sends the rest
+    public List<Map<String, Object>> listParts(String key, String uploadId) {
+        declaredUpload(key, uploadId);
+        List<Map<String, Object>> parts = new ArrayList<>();
+        for (Part part : storedParts(key, uploadId)) {
+            parts.add(Map.of("partNumber", part.partNumber(), "eTag", part.eTag(), "size", part.size()));
+        }
+        return parts;
+    }
+    
+    public String complete(String key, String uploadId) {
+        Map<Object, Object> declared = declaredUpload(key, uploadId);
+        long size = ((Number) declared.get("size")).longValue();
+        
+        List<Part> stored = storedParts(key, uploadId).stream()
+                .sorted(Comparator.comparing(Part::partNumber))
+                .toList();
+        if (stored.isEmpty()) {
+            throw new BadRequestException("Upload " + uploadId + " has no parts");
+        }
+        // Parts must run 1..N with no gaps and add up to the declared size, or the object would be truncated
+        long total = 0;
+        for (int i = 0; i < stored.size(); i++) {
+            if (stored.get(i).partNumber() != i + 1) {
+                throw new BadRequestException("Upload " + uploadId + " is missing part " + (i + 1));
+            }
+            total += stored.get(i).size();
+        }
+        if (total != size) {
+            throw new BadRequestException("Upload " + uploadId + " has " + total + " bytes, " + size
+                    + " were declared");
+        }
+        List<CompletedPart> parts = stored.stream()
+                .map(part -> CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build())
+                .toList();
+        
+        s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .bucket(r2StorageService.getBucketName())
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build());
+        redisTemplate.delete(declaredKey(uploadId));
+        r2StorageService.uploaded(key, size, key.startsWith("videos/"));
+        if (mediaDedupService.isEnabled() && declared.get("sha256") instanceof String contentHash) {
+            verifyAsync(key, size, (String) declared.get("contentType"), contentHash);
+        }
+        return r2StorageService.getPublicUrl(key);
+    }
+    
+    // One read of the object, off the request; the hash is indexed only if the stored bytes match it
+    private void verifyAsync(String key, long size, String contentType, String contentHash) {
+        try {
+            verifyExecutor.execute(() -> {
+                try (InputStream in = s3Client.getObject(GetObjectRequest.builder()
+                        .bucket(r2StorageService.getBucketName())
+                        .key(key)
+                        .build())) {
+                    String stored = MediaDedupService.hash(in);
+                    if (stored.equals(contentHash)) {
+                        mediaDedupService.register(contentHash, key, size, contentType);
+                    } else {
+                        log.warn("Upload {} declared SHA-256 {} but stored bytes hash to {}", key, contentHash, stored);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not verify the SHA-256 of {}: {}", key, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Not verifying {}: executor is shut down", key);
+        }
+    }
+    
+    public void abort(String key, String uploadId) {
+        s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                .bucket(r2StorageService.getBucketName())
+                .key(key)
+                .uploadId(uploadId)
+                .build());
+        redisTemplate.delete(declaredKey(uploadId));
+    }
+    
+    // What create recorded for this upload; unknown or expired pairs, and keys that belong to another upload,
+    // are not found
+    private Map<Object, Object> declaredUpload(String key, String uploadId) {
+        Map<Object, Object> declared = redisTemplate.opsForHash().entries(declaredKey(uploadId));
+        if (declared.isEmpty() || !key.equals(declared.get("key"))) {
+            throw new ResourceNotFoundException("Upload", "id", uploadId);
+        }
+        return declared;
+    }
+    
+    private static String declaredKey(String uploadId) {
+        return "upload:multipart:" + uploadId;
+    }
+    
+    private List<Part> storedParts(String key, String uploadId) {
+        List<Part> parts = new ArrayList<>();
+        s3Client.listPartsPaginator(ListPartsRequest.builder()
+                        .bucket(r2StorageService.getBucketName())
+                        .key(key)
+                        .uploadId(uploadId)
+                        .build())
+                .parts()
+                .forEach(parts::add);
+        return parts;
+    }
+    
+    @Scheduled(fixedDelayString = "${app.storage.multipart.sweep-interval-ms:3600000}",
+            initialDelayString = "${app.storage.multipart.sweep-interval-ms:3600000}")
+    public void abortAbandonedUploads() {
+        Instant cutoff = Instant.now().minus(Duration.ofHours(abandonAfterHours));
+        int aborted = 0;
+        try {
+            for (MultipartUpload upload : s3Client.listMultipartUploadsPaginator(ListMultipartUploadsRequest.builder()
+                    .bucket(r2StorageService.getBucketName())
+                    .build()).uploads()) {
+                if (upload.initiated() != null && upload.initiated().isBefore(cutoff)) {
+                    abort(upload.key(), upload.uploadId());
+                    aborted++;
+                }
+            }
+        } catch (S3Exception e) {
+            log.warn("Sweeping abandoned multipart uploads failed: {}", e.getMessage());
+        }
+        if (aborted > 0) {
+            log.info("Aborted {} abandoned multipart uploads", aborted);
+        }
+    }
+}
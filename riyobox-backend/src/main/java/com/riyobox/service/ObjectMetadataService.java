@@ -0,0 +1,93 @@
+package com.riyobox.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.model.ObjectMetadata;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// HeadObject results kept for a short TTL so range requests and HEAD probes skip the storage round trip.
+// Concurrent misses on one key share a single HEAD, and a full cache evicts least recently used entries.
+@Service
+@RequiredArgsConstructor
+public class ObjectMetadataService {
+    
+    private final ObjectStorageService objectStorageService;
+    
+    @Value("${app.streaming.metadata.ttl-seconds:300}")
+    private long ttlSeconds;
+    
+    @Value("${app.streaming.metadata.max-entries:10000}")
+    private int maxEntries;
+    
+    private AsyncCache<String, ObjectMetadata> entries;
+    
+    @PostConstruct
+    public void init() {
+        entries = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .maximumSize(maxEntries)
+                .buildAsync();
+    }
+    
+    public ObjectMetadata getMetadata(String key) {
+        try {
+            return getMetadataAsync(key).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+    
+    // Completes on an SDK thread when the lookup misses the cache; failed lookups are not cached
+    public CompletableFuture<ObjectMetadata> getMetadataAsync(String key) {
+        return entries.get(key, (k, executor) -> objectStorageService.head(k).handle((head, error) -> {
+            if (error != null) {
+                if (ObjectStorageService.hasStatus(error, HttpStatus.NOT_FOUND.value())) {
+                    throw new ResourceNotFoundException("Video", "key", k);
+                }
+                throw new CompletionException(ObjectStorageService.unwrap(error));
+            }
+            return toMetadata(k, head);
+        }));
+    }
+    
+    // Called whenever an object is written or replaced. A HEAD still in flight is dropped with the entry, so it
+    // cannot put the old size and ETag back when it completes.
+    public void invalidate(String key) {
+        entries.synchronous().invalidate(key);
+    }
+    
+    private ObjectMetadata toMetadata(String key, HeadObjectResponse head) {
+        return ObjectMetadata.builder()
+                .key(key)
+                .contentLength(head.contentLength())
+                .eTag(head.eTag())
+                .contentType(resolveContentType(key, head.contentType()))
+                .lastModified(head.lastModified())
+                .build();
+    }
+    
+    // Presigned uploads often leave the generic type; fall back to the file extension
+    private String resolveContentType(String key, String stored) {
+        if (stored != null && !stored.isBlank() && !MediaType.APPLICATION_OCTET_STREAM_VALUE.equals(stored)) {
+            return stored;
+        }
+        return MediaTypeFactory.getMediaType(key)
+                .map(MediaType::toString)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+    }
+}
@@ -0,0 +1,278 @@
+package com.riyobox.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking storage calls on the pooled async client. Futures complete on SDK event-loop threads, so
+// callers move to their own executor before doing disk or other blocking work.
+@Service
+@RequiredArgsConstructor
+public class ObjectStorageService {
+    
+    private final S3AsyncClient s3AsyncClient;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${cloudflare.r2.bucket-name}")
+    private String bucketName;
+    
+    @Value("${app.streaming.hedging.enabled:false}")
+    private boolean hedgingEnabled;
+    
+    @Value("${app.streaming.hedging.percentile:0.95}")
+    private double hedgePercentile;
+    
+    @Value("${app.streaming.hedging.min-delay-ms:20}")
+    private long minHedgeDelayMillis;
+    
+    @Value("${app.streaming.hedging.window:1000}")
+    private int latencyWindow;
+    
+    @Value("${app.streaming.hedging.budget-ratio:0.05}")
+    private double hedgeBudgetRatio;
+    
+    @Value("${app.streaming.hedging.budget-burst:10}")
+    private double hedgeBudgetBurst;
+    
+    private ScheduledExecutorService hedgeScheduler;
+    private Counter hedgedReads;
+    private Counter hedgeWins;
+    
+    // Rolling window of time-to-first-byte samples; the hedge delay is its percentile, or -1 until it fills
+    private long[] latencies;
+    private long latencySamples;
+    private volatile long hedgeDelayNanos = -1;
+    private double hedgeTokens;
+    
+    @PostConstruct
+    public void init() {
+        latencies = new long[latencyWindow];
+        hedgeScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("storage-hedge-"));
+        hedgedReads = Counter.builder("riyobox.stream.storage.hedges")
+                .description("Block reads that issued a second, hedged request")
+                .register(meterRegistry);
+        hedgeWins = Counter.builder("riyobox.stream.storage.hedge.wins")
+                .description("Hedged reads answered by the hedge rather than the original request")
+                .register(meterRegistry);
+        Gauge.builder("riyobox.stream.storage.hedge.delay", this, service -> service.hedgeDelayNanos / 1e6)
+                .description("Time to first byte after which a read is hedged")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        hedgeScheduler.shutdownNow();
+    }
+    
+    public CompletableFuture<HeadObjectResponse> head(String key) {
+        return s3AsyncClient.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build());
+    }
+    
+    // Bytes [start, end]; with an ETag the read fails with 412 if the object was replaced
+    public CompletableFuture<byte[]> getRange(String key, long start, long end, String eTag) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + start + "-" + end)
+                .ifMatch(eTag)
+                .build();
+        return s3AsyncClient.getObject(getObjectRequest, AsyncResponseTransformer.toBytes())
+                .thenApply(ResponseBytes::asByteArrayUnsafe);
+    }
+    
+    // Like getRange, but when the response has not started within the rolling p95 a second identical
+    // request races it; the first to finish wins and the other is cancelled. Hedges are paid for from a
+    // budget earned per read, so they add at most budget-ratio to upstream load.
+    public CompletableFuture<byte[]> getRangeHedged(String key, long start, long end, String eTag) {
+        if (!hedgingEnabled) {
+            return getRange(key, start, end, eTag);
+        }
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + start + "-" + end)
+                .ifMatch(eTag)
+                .build();
+        
+        earnHedgeToken();
+        HedgedRead read = new HedgedRead(getObjectRequest);
+        long delay = hedgeDelayNanos;
+        if (delay >= 0) {
+            try {
+                read.schedule(hedgeScheduler.schedule(read::hedge, delay, TimeUnit.NANOSECONDS));
+            } catch (RejectedExecutionException e) {
+                // Shutting down; the original request alone will do
+            }
+        }
+        return read.result;
+    }
+    
+    private Attempt attempt(GetObjectRequest getObjectRequest) {
+        long started = System.nanoTime();
+        FirstByteTransformer transformer = new FirstByteTransformer(AsyncResponseTransformer.toBytes());
+        CompletableFuture<ResponseBytes<GetObjectResponse>> call =
+                s3AsyncClient.getObject(getObjectRequest, transformer);
+        transformer.firstByte.thenRun(() -> recordLatency(System.nanoTime() - started));
+        return new Attempt(call, transformer.firstByte);
+    }
+    
+    private synchronized void recordLatency(long nanos) {
+        latencies[(int) (latencySamples++ % latencies.length)] = nanos;
+        // Re-sorting a thousand longs every tenth of a window is cheap next to the reads it measures
+        if (latencySamples >= latencies.length && latencySamples % Math.max(1, latencies.length / 10) == 0) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            long percentile = sorted[(int) Math.min(sorted.length - 1, Math.ceil(hedgePercentile * sorted.length) - 1)];
+            hedgeDelayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis), percentile);
+        }
+    }
+    
+    private synchronized void earnHedgeToken() {
+        hedgeTokens = Math.min(hedgeBudgetBurst, hedgeTokens + hedgeBudgetRatio);
+    }
+    
+    private synchronized boolean spendHedgeToken() {
+        if (hedgeTokens < 1) {
+            return false;
+        }
+        hedgeTokens -= 1;
+        return true;
+    }
+    
+    // Failures of dependent stages arrive wrapped in CompletionException
+    public static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+    
+    public static boolean hasStatus(Throwable error, int statusCode) {
+        return unwrap(error) instanceof S3Exception e && e.statusCode() == statusCode;
+    }
+    
+    private final class HedgedRead {
+        
+        private final GetObjectRequest getObjectRequest;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final Attempt primary;
+        private Attempt hedge;
+        private ScheduledFuture<?> timer;
+        
+        HedgedRead(GetObjectRequest getObjectRequest) {
+            this.getObjectRequest = getObjectRequest;
+            this.primary = attempt(getObjectRequest);
+            primary.call().whenComplete((bytes, error) -> completed(primary, bytes, error));
+        }
+        
+        synchronized void schedule(ScheduledFuture<?> timer) {
+            this.timer = timer;
+            if (result.isDone()) {
+                timer.cancel(false);
+            }
+        }
+        
+        synchronized void hedge() {
+            if (result.isDone() || primary.firstByte().isDone() || !spendHedgeToken()) {
+                return;
+            }
+            hedgedReads.increment();
+            Attempt second = attempt(getObjectRequest);
+            hedge = second;
+            second.call().whenComplete((bytes, error) -> completed(second, bytes, error));
+        }
+        
+        private synchronized void completed(Attempt attempt, ResponseBytes<GetObjectResponse> bytes, Throwable error) {
+            if (result.isDone()) {
+                return;
+            }
+            Attempt other = attempt == primary ? hedge : primary;
+            if (error == null) {
+                if (attempt == hedge) {
+                    hedgeWins.increment();
+                }
+                result.complete(bytes.asByteArrayUnsafe());
+            } else if (other != null && !other.call().isDone()) {
+                // The other request may still succeed
+                return;
+            } else {
+                result.completeExceptionally(unwrap(error));
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (other != null) {
+                // Cancelling the SDK future aborts the loser's connection
+                other.call().cancel(true);
+            }
+        }
+    }
+    
+    private record Attempt(CompletableFuture<ResponseBytes<GetObjectResponse>> call,
+                           CompletableFuture<Void> firstByte) {
+    }
+    
+    // Signals when response headers arrive, which is as close to the first byte as the SDK exposes
+    private static final class FirstByteTransformer
+            implements AsyncResponseTransformer<GetObjectResponse, ResponseBytes<GetObjectResponse>> {
+        
+        private final AsyncResponseTransformer<GetObjectResponse, ResponseBytes<GetObjectResponse>> delegate;
+        private final CompletableFuture<Void> firstByte = new CompletableFuture<>();
+        
+        FirstByteTransformer(AsyncResponseTransformer<GetObjectResponse, ResponseBytes<GetObjectResponse>> delegate) {
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public CompletableFuture<ResponseBytes<GetObjectResponse>> prepare() {
+            return delegate.prepare();
+        }
+        
+        @Override
+        public void onResponse(GetObjectResponse response) {
+            firstByte.complete(null);
+            delegate.onResponse(response);
+        }
+        
+        @Override
+        public void onStream(SdkPublisher<ByteBuffer> publisher) {
+            delegate.onStream(publisher);
+        }
+        
+        @Override
+        public void exceptionOccurred(Throwable error) {
+            delegate.exceptionOccurred(error);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.riyobox.service;
+
+import com.riyobox.model.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+
+// Compact HMAC-SHA256 tokens for one playback session: user, stream resource, quality and expiry, signed with
+// a key derived from the JWT secret. Verifying one is a hash and a comparison, so range requests carrying
+// a token need neither the JWT parser nor a user lookup.
+@Service
+public class PlaybackTokenService {
+    
+    private static final String SEPARATOR = "\n";
+    
+    @Value("${app.jwt.secret}")
+    private String secret;
+    
+    @Value("${app.streaming.playback-token.ttl-seconds:14400}")
+    private long ttlSeconds;
+    
+    // Mac instances are not thread-safe and costly to create
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+    
+    public PlaybackToken issue(User user, String resource, String quality) {
+        long expiresAt = Instant.now().getEpochSecond() + ttlSeconds;
+        String payload = String.join(SEPARATOR, user.getId(), user.getEmail(), plan(user), resource,
+                quality != null ? quality : "", Long.toString(expiresAt));
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String token = encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(sign(payloadBytes));
+        return new PlaybackToken(token, expiresAt);
+    }
+    
+    // The user the token was issued to, if it is genuine, unexpired and bound to this resource and quality
+    public Optional<User> verify(String token, String resource, String quality) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return Optional.empty();
+        }
+        byte[] payloadBytes;
+        byte[] signature;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payloadBytes = decoder.decode(token.substring(0, dot));
+            signature = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (!MessageDigest.isEqual(sign(payloadBytes), signature)) {
+            return Optional.empty();
+        }
+        
+        String[] fields = new String(payloadBytes, StandardCharsets.UTF_8).split(SEPARATOR, -1);
+        if (fields.length != 6
+                || !fields[3].equals(resource)
+                || !fields[4].equals(quality != null ? quality : "")
+                || Long.parseLong(fields[5]) < Instant.now().getEpochSecond()) {
+            return Optional.empty();
+        }
+        return Optional.of(User.builder()
+                .id(fields[0])
+                .email(fields[1])
+                .subscriptionPlan(fields[2])
+                .build());
+    }
+    
+    private String plan(User user) {
+        return user.getSubscriptionPlan() != null ? user.getSubscriptionPlan() : "free";
+    }
+    
+    private byte[] sign(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+    
+    private Mac newMac() {
+        try {
+            // Separate key from the JWT signing key, so neither token can stand in for the other
+            Mac derive = Mac.getInstance("HmacSHA256");
+            derive.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] key = derive.doFinal("playback-token".getBytes(StandardCharsets.UTF_8));
+            
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+    
+    public record PlaybackToken(String token, long expiresAt) {
+    }
+}
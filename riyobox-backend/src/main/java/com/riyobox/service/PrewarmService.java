@@ -0,0 +1,181 @@
+package com.riyobox.service;
+
+import com.riyobox.media.Mp4Box;
+import com.riyobox.media.Mp4BoxReader;
+import com.riyobox.model.Movie;
+import com.riyobox.model.ObjectMetadata;
+import com.riyobox.repository.MovieRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Loads the opening bytes and the moov of every quality of hot titles into the stream cache, so the first
+// viewers of a featured, trending or new movie start from cache instead of a cold R2 fetch. One background
+// worker paced by a token bucket keeps warming from competing with viewers for storage bandwidth.
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PrewarmService {
+    
+    private final MovieRepository movieRepository;
+    private final R2StorageService r2StorageService;
+    private final ObjectMetadataService objectMetadataService;
+    private final VideoBlockService videoBlockService;
+    private final MediaIndexService mediaIndexService;
+    
+    @Value("${app.streaming.prewarm.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.streaming.prewarm.leading-bytes:8388608}")
+    private long leadingBytes;
+    
+    @Value("${app.streaming.prewarm.rate:10485760}")
+    private long rate;
+    
+    @Value("${app.streaming.prewarm.rewarm-after-minutes:60}")
+    private long rewarmAfterMinutes;
+    
+    private ExecutorService prewarmExecutor;
+    private TokenBucket bucket;
+    
+    // Movies waiting for the worker, and when each object version was last warmed
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> warmed = new ConcurrentHashMap<>();
+    
+    @PostConstruct
+    public void init() {
+        prewarmExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("stream-prewarm-"));
+        bucket = new TokenBucket(rate, rate);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        prewarmExecutor.shutdownNow();
+    }
+    
+    @Scheduled(fixedDelayString = "${app.streaming.prewarm.interval-ms:600000}",
+            initialDelayString = "${app.streaming.prewarm.initial-delay-ms:60000}")
+    public void prewarmHotTitles() {
+        if (!isActive()) {
+            return;
+        }
+        movieRepository.findByIsFeaturedTrue().forEach(this::prewarmAsync);
+        movieRepository.findTrendingMovies().forEach(this::prewarmAsync);
+    }
+    
+    public void prewarmAsync(Movie movie) {
+        if (!isActive() || movie.getId() == null || movie.getVideoUrls() == null || movie.getVideoUrls().isEmpty()) {
+            return;
+        }
+        if (!queued.add(movie.getId())) {
+            return;
+        }
+        try {
+            prewarmExecutor.execute(() -> {
+                try {
+                    prewarm(movie);
+                } finally {
+                    queued.remove(movie.getId());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.remove(movie.getId());
+        }
+    }
+    
+    private boolean isActive() {
+        return enabled && videoBlockService.isCacheEnabled();
+    }
+    
+    private void prewarm(Movie movie) {
+        for (Map.Entry<String, String> rendition : movie.getVideoUrls().entrySet()) {
+            try {
+                prewarm(r2StorageService.keyFromUrl(rendition.getValue()));
+            } catch (InterruptedIOException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not pre-warm {} of movie {}: {}", rendition.getKey(), movie.getId(), e.getMessage());
+            }
+        }
+    }
+    
+    private void prewarm(String key) throws IOException {
+        ObjectMetadata object = objectMetadataService.getMetadata(key);
+        Long last = warmed.get(object.versionKey());
+        if (last != null && System.nanoTime() - last < TimeUnit.MINUTES.toNanos(rewarmAfterMinutes)) {
+            return;
+        }
+        
+        int chunkSize = videoBlockService.getChunkSize();
+        long lastBlock = (object.getContentLength() - 1) / chunkSize;
+        long leadingBlocks = Math.min(lastBlock + 1, (leadingBytes + chunkSize - 1) / chunkSize);
+        for (long index = 0; index < leadingBlocks; index++) {
+            warm(object, index);
+        }
+        
+        // Files that are not faststart keep their moov at the end. Walking the boxes here, through warm(), charges
+        // the header and moov reads to the bucket and admits their blocks, so the index build that follows only
+        // reads blocks that are already cached and protected
+        if (mediaIndexService.isIndexable(object)) {
+            Mp4BoxReader.RangeReader reader = (offset, length) -> {
+                warmRange(object, offset, length);
+                return videoBlockService.readRange(object, offset, length);
+            };
+            for (Mp4Box box : Mp4BoxReader.readTopLevel(reader, object.getContentLength())) {
+                if (box.type().equals("moov") || box.type().equals("sidx")) {
+                    warmRange(object, box.offset(), box.size());
+                }
+            }
+            mediaIndexService.requireIndex(object);
+        }
+        
+        if (warmed.size() >= 10000) {
+            warmed.clear();
+        }
+        warmed.put(object.versionKey(), System.nanoTime());
+    }
+    
+    private void warmRange(ObjectMetadata object, long offset, long length) throws IOException {
+        int chunkSize = videoBlockService.getChunkSize();
+        for (long block = offset / chunkSize; block <= (offset + length - 1) / chunkSize; block++) {
+            warm(object, block);
+        }
+    }
+    
+    private void warm(ObjectMetadata object, long index) throws IOException {
+        // Blocks a viewer or the index build already fetched sit in the admission window, where they would be the
+        // first evicted; admitting them is all the warming they need
+        if (videoBlockService.admitCachedBlock(object, index)) {
+            return;
+        }
+        long bytes = videoBlockService.getChunkSize();
+        long wait;
+        // Only the prewarm worker uses the bucket, and it has nothing better to do than wait
+        while ((wait = bucket.nanosUntil(bytes, System.nanoTime())) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pre-warming interrupted");
+            }
+        }
+        bucket.consume(bytes);
+        // Nobody has requested the block yet, so it would lose TinyLFU admission to anything once the disk is full
+        videoBlockService.loadAdmittedBlock(object, index);
+    }
+}
@@ -1,55 +1,133 @@
 package com.riyobox.service;
 
+import com.riyobox.exception.BadRequestException;
+import com.riyobox.model.MediaObject;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
+import org.springframework.web.multipart.MultipartFile;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
-import java.net.URL;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class R2StorageService {
     
-    @Value("${r2.account-id}")
-    private String accountId;
-    
-    @Value("${r2.access-key}")
-    private String accessKey;
+    private final S3Client s3Client;
+    private final S3Presigner s3Presigner;
+    private final ObjectMetadataService objectMetadataService;
+    private final MediaIndexService mediaIndexService;
+    private final MediaDedupService mediaDedupService;
     
-    @Value("${r2.secret-key}")
-    private String secretKey;
+    @Getter
+    @Value("${cloudflare.r2.account-id}")
+    private String accountId;
     
-    @Value("${r2.bucket-name}")
+    @Getter
+    @Value("${cloudflare.r2.bucket-name}")
     private String bucketName;
     
-    @Value("${r2.public-url}")
+    @Getter
+    @Value("${cloudflare.r2.public-url}")
     private String publicUrl;
     
-    public String generatePresignedUrl(String fileName, String contentType) {
-        S3Presigner presigner = S3Presigner.builder()
-                .credentialsProvider(StaticCredentialsProvider.create(
-                        AwsBasicCredentials.create(accessKey, secretKey)
-                ))
-                .region(Region.US_EAST_1)
-                .endpointOverride(java.net.URI.create(
-                        String.format("https://%s.r2.cloudflarestorage.com", accountId)
-                ))
-                .build();
-        
+    @Value("${app.storage.max-presign-batch:50}")
+    private int maxPresignBatch;
+    
+    @Value("${app.streaming.redirect.url-ttl-seconds:300}")
+    private long getUrlTtlSeconds;
+    
+    // Presigned GET URLs by key and expiry window; see presignGetUrl
+    private final Map<String, String> getUrls = new ConcurrentHashMap<>();
+    private volatile long getUrlWindow;
+    
+    // Clients that send the SHA-256 of the file learn when it is already stored and skip the upload
+    public Map<String, String> generatePresignedUrl(String fileName, String contentType, String contentHash) {
+        Optional<MediaObject> existing = mediaDedupService.find(contentHash);
+        if (existing.isPresent()) {
+            return Map.of("publicUrl", getPublicUrl(existing.get().getObjectKey()), "duplicate", "true");
+        }
         String key = "uploads/" + UUID.randomUUID() + "/" + fileName;
-        
+        Map<String, String> signed = new LinkedHashMap<>();
+        signed.put("publicUrl", getPublicUrl(key));
+        presignUpload(signed, key, contentType, contentHash);
+        return signed;
+    }
+    
+    // Every asset of a movie signed in one call: thumbnail, poster and one video per quality
+    public List<Map<String, String>> generatePresignedUrls(List<Map<String, String>> files) {
+        if (files == null || files.isEmpty() || files.size() > maxPresignBatch) {
+            throw new BadRequestException("A batch holds between 1 and " + maxPresignBatch + " files");
+        }
+        List<Map<String, String>> urls = new ArrayList<>(files.size());
+        for (Map<String, String> file : files) {
+            Map<String, String> signed = new LinkedHashMap<>(file);
+            Optional<MediaObject> existing = mediaDedupService.find(file.get("sha256"));
+            if (existing.isPresent()) {
+                signed.put("key", existing.get().getObjectKey());
+                signed.put("publicUrl", getPublicUrl(existing.get().getObjectKey()));
+                signed.put("duplicate", "true");
+                urls.add(signed);
+                continue;
+            }
+            String kind = file.getOrDefault("kind", "upload");
+            String key = folder(kind) + "/" + UUID.randomUUID() + "/" + file.get("fileName");
+            signed.put("key", key);
+            signed.put("publicUrl", getPublicUrl(key));
+            presignUpload(signed, key, file.get("fileType"), file.get("sha256"));
+            urls.add(signed);
+        }
+        return urls;
+    }
+    
+    private String folder(String kind) {
+        return switch (kind) {
+            case "thumbnail" -> "thumbnails";
+            case "poster" -> "posters";
+            case "video" -> "videos";
+            default -> "uploads";
+        };
+    }
+    
+    // Adds the upload URL to a presign response. With a hash, the URL is signed over x-amz-checksum-sha256, so the
+    // client has to send that header with the value returned as checksumSha256 and R2 refuses bytes that do not
+    // match it; only then is the hash safe to index before the server has seen the object. Until the PUT lands,
+    // lookups of the hash find no object and drop the entry, as for any deleted object.
+    private void presignUpload(Map<String, String> signed, String key, String contentType, String contentHash) {
+        String checksum = contentHash != null ? MediaDedupService.checksumSha256(contentHash) : null;
+        signed.put("uploadUrl", presignPutUrl(key, contentType, checksum));
+        if (checksum != null) {
+            signed.put("checksumSha256", checksum);
+            mediaDedupService.register(contentHash.toLowerCase(Locale.ROOT), key, -1, contentType);
+        }
+    }
+    
+    private String presignPutUrl(String key, String contentType, String checksum) {
         PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                 .bucket(bucketName)
                 .key(key)
                 .contentType(contentType)
+                .checksumSHA256(checksum)
                 .build();
         
         PutObjectPresignRequest presignRequest = PutObjectPresignRequest.builder()
@@ -57,13 +135,99 @@ public class R2StorageService {
                 .putObjectRequest(putObjectRequest)
                 .build();
         
-        URL url = presigner.presignPutObject(presignRequest).url();
-        String publicFileUrl = publicUrl + "/" + key;
+        return s3Presigner.presignPutObject(presignRequest).url().toString();
+    }
+    
+    public String uploadFile(MultipartFile file, String folder) throws IOException {
+        // The part is already on local disk, so hashing it is one local read that may save the whole transfer
+        String contentHash = null;
+        if (mediaDedupService.isEnabled()) {
+            try (InputStream in = file.getInputStream()) {
+                contentHash = MediaDedupService.hash(in);
+            }
+            Optional<MediaObject> existing = mediaDedupService.find(contentHash);
+            if (existing.isPresent()) {
+                return getPublicUrl(existing.get().getObjectKey());
+            }
+        }
+        
+        String key = folder + "/" + UUID.randomUUID() + "/" + file.getOriginalFilename();
+        long size = file.getSize();
+        boolean video = file.getContentType() != null && file.getContentType().startsWith("video/");
+        
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(file.getContentType())
+                .contentLength(file.getSize())
+                .build();
         
-        return Map.of("uploadUrl", url.toString(), "publicUrl", publicFileUrl);
+        try (InputStream in = file.getInputStream()) {
+            s3Client.putObject(putObjectRequest, RequestBody.fromInputStream(in, file.getSize()));
+        }
+        uploaded(key, size, video);
+        if (contentHash != null) {
+            mediaDedupService.register(contentHash, key, size, file.getContentType());
+        }
+        
+        return getPublicUrl(key);
+    }
+    
+    // Bookkeeping once an object has been written, however it got there; a negative size skips the size check
+    public void uploaded(String key, long size, boolean video) {
+        // Drop any metadata cached for this key so streams see the new size and ETag
+        objectMetadataService.invalidate(key);
+        // Verify what landed in storage without holding the request; the lookup also warms the metadata cache
+        objectMetadataService.getMetadataAsync(key).whenComplete((stored, error) -> {
+            if (error != null || (size >= 0 && stored.getContentLength() != size)) {
+                log.error("Upload of {} could not be verified: expected {} bytes, storage has {}", key, size,
+                        error != null ? error.getMessage() : stored.getContentLength());
+                return;
+            }
+            if (video) {
+                // Parse the boxes now so the first viewer gets keyframes and fast start right away
+                mediaIndexService.indexAsync(stored);
+            }
+        });
+    }
+    
+    // Time is cut into windows of the TTL; every request for a key within one window gets the same URL, signed
+    // to stay valid until the end of the next window, so each URL has at least one TTL left when handed out
+    public String presignGetUrl(String key) {
+        long windowMillis = getUrlTtlSeconds * 1000;
+        long now = System.currentTimeMillis();
+        long window = now / windowMillis;
+        if (window != getUrlWindow) {
+            getUrlWindow = window;
+            getUrls.keySet().removeIf(cached -> !cached.startsWith(window + "|"));
+        }
+        
+        return getUrls.computeIfAbsent(window + "|" + key, cached -> {
+            GetObjectPresignRequest presignRequest = GetObjectPresignRequest.builder()
+                    .signatureDuration(Duration.ofMillis((window + 2) * windowMillis - now))
+                    .getObjectRequest(GetObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(key)
+                            .build())
+                    .build();
+            return s3Presigner.presignGetObject(presignRequest).url().toString();
+        });
     }
     
     public String getPublicUrl(String key) {
         return publicUrl + "/" + key;
     }
+    
+    // Movie URLs are public URLs; the object key is the path below the public base
+    public String keyFromUrl(String url) {
+        if (url.startsWith(publicUrl + "/")) {
+            return url.substring(publicUrl.length() + 1);
+        }
+        try {
+            String path = URI.create(url).getPath();
+            return path != null ? path.replaceFirst("^/", "") : url;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package com.riyobox.service;
+
+import com.riyobox.service.VideoStreamService.ByteRange;
+import org.springframework.http.HttpRange;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// What a Range header selects from an object of known length (RFC 9110 14.2): the whole object (no ranges),
+// the byte ranges to send, or nothing satisfiable
+public record RangeSelection(List<ByteRange> ranges, boolean unsatisfiable) {
+    
+    private static final RangeSelection WHOLE = new RangeSelection(List.of(), false);
+    private static final RangeSelection NONE = new RangeSelection(List.of(), true);
+    
+    public static RangeSelection whole() {
+        return WHOLE;
+    }
+    
+    // A missing or malformed header, or more than maxRanges ranges, is ignored and the whole object is served.
+    // Unsatisfiable ranges are dropped; overlapping and adjacent ones are merged, so no byte is sent twice.
+    public static RangeSelection of(String rangeHeader, long contentLength, int maxRanges) {
+        if (rangeHeader == null) {
+            return WHOLE;
+        }
+        List<HttpRange> requested;
+        try {
+            requested = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return WHOLE;
+        }
+        if (requested.isEmpty() || requested.size() > maxRanges) {
+            return WHOLE;
+        }
+        
+        List<ByteRange> satisfiable = new ArrayList<>(requested.size());
+        for (HttpRange range : requested) {
+            // Open-ended ("bytes=N-") and suffix ("bytes=-N") ranges resolve against the object length
+            long start = range.getRangeStart(contentLength);
+            long end = range.getRangeEnd(contentLength);
+            if (start < contentLength && start <= end) {
+                satisfiable.add(new ByteRange(start, end));
+            }
+        }
+        if (satisfiable.isEmpty()) {
+            return NONE;
+        }
+        return new RangeSelection(coalesce(satisfiable), false);
+    }
+    
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() == 1) {
+            return List.copyOf(ranges);
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ByteRange::start));
+        List<ByteRange> merged = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+        for (ByteRange next : sorted.subList(1, sorted.size())) {
+            if (next.start() <= current.end() + 1) {
+                current = new ByteRange(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return List.copyOf(merged);
+    }
+}
@@ -0,0 +1,168 @@
+package com.riyobox.service;
+
+import com.riyobox.model.ObjectMetadata;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Pulls the blocks after the one a viewer is reading into the chunk cache, sized to how fast they consume
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ReadAheadPrefetcher {
+    
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final long SESSION_IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    
+    private final VideoBlockService videoBlockService;
+    
+    @Value("${app.streaming.prefetch.enabled:true}")
+    private boolean enabled;
+    
+    @Value("${app.streaming.prefetch.min-blocks:1}")
+    private int minBlocks;
+    
+    @Value("${app.streaming.prefetch.max-blocks:8}")
+    private int maxBlocks;
+    
+    @Value("${app.streaming.prefetch.lead-seconds:10}")
+    private int leadSeconds;
+    
+    @Value("${app.streaming.prefetch.threads:8}")
+    private int threads;
+    
+    @Value("${app.streaming.prefetch.queue-size:256}")
+    private int queueSize;
+    
+    private ThreadPoolExecutor executor;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private volatile long lastSweep = System.nanoTime();
+    
+    @PostConstruct
+    public void init() {
+        // Bounded queue: when storage is saturated read-ahead is dropped, never foreground reads
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("stream-prefetch-"));
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    public void onBlockServed(String viewer, ObjectMetadata object, long index) {
+        if (!enabled || !videoBlockService.isCacheEnabled()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Session session = sessions.computeIfAbsent(sessionKey(viewer, object.getKey()), k -> new Session());
+        
+        synchronized (session) {
+            if (session.lastIndex >= 0 && index == session.lastIndex + 1) {
+                double seconds = (now - session.lastServedAt) / 1e9;
+                if (seconds > 0) {
+                    double rate = 1 / seconds;
+                    session.blocksPerSecond = session.blocksPerSecond == 0
+                            ? rate
+                            : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * session.blocksPerSecond;
+                }
+            } else if (index != session.lastIndex) {
+                // The viewer seeked: read-ahead for the old position is wasted egress
+                session.cancelPending();
+                session.blocksPerSecond = 0;
+            }
+            session.lastIndex = index;
+            session.lastServedAt = now;
+            
+            long lastBlock = (object.getContentLength() - 1) / videoBlockService.getChunkSize();
+            long windowEnd = Math.min(index + window(session.blocksPerSecond), lastBlock);
+            session.pending.values().removeIf(Future::isDone);
+            
+            for (long next = index + 1; next <= windowEnd; next++) {
+                if (session.pending.containsKey(next) || videoBlockService.isCached(object, next)) {
+                    continue;
+                }
+                long block = next;
+                try {
+                    session.pending.put(block, executor.submit(() -> prefetch(object, block)));
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+        }
+        
+        sweepIdleSessions(now);
+    }
+    
+    public void onStreamAborted(String viewer, String key) {
+        Session session = sessions.remove(sessionKey(viewer, key));
+        if (session != null) {
+            synchronized (session) {
+                session.cancelPending();
+            }
+        }
+    }
+    
+    // Enough blocks to cover the lead time at the observed consumption rate
+    private int window(double blocksPerSecond) {
+        int blocks = (int) Math.ceil(blocksPerSecond * leadSeconds);
+        return Math.max(minBlocks, Math.min(maxBlocks, blocks));
+    }
+    
+    private void prefetch(ObjectMetadata object, long index) {
+        try {
+            videoBlockService.loadBlock(object, index);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Prefetch of block {} of {} failed: {}", index, object.getKey(), e.getMessage());
+        }
+    }
+    
+    private void sweepIdleSessions(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_NANOS) {
+            return;
+        }
+        lastSweep = now;
+        sessions.entrySet().removeIf(entry -> {
+            Session session = entry.getValue();
+            synchronized (session) {
+                if (now - session.lastServedAt < SESSION_IDLE_NANOS) {
+                    return false;
+                }
+                session.cancelPending();
+                return true;
+            }
+        });
+    }
+    
+    private String sessionKey(String viewer, String key) {
+        return viewer + "|" + key;
+    }
+    
+    private static class Session {
+        private long lastIndex = -1;
+        private long lastServedAt;
+        private double blocksPerSecond;
+        private final Map<Long, Future<?>> pending = new HashMap<>();
+        
+        // Fetches already running are left to finish: other readers may be waiting on the same flight
+        private void cancelPending() {
+            pending.values().forEach(future -> future.cancel(false));
+            pending.clear();
+        }
+    }
+}
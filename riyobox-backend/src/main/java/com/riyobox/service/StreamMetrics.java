@@ -0,0 +1,104 @@
+package com.riyobox.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+// Per-title streaming meters. Percentiles are computed in-process from Micrometer's HdrHistogram-style
+// buckets, so Prometheus scrapes a handful of series per title rather than full histograms. Registering a meter
+// sorts its tags and looks it up in the registry, so each title and quality's meters are built once and kept.
+@Service
+@RequiredArgsConstructor
+public class StreamMetrics {
+    
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${app.streaming.metrics.per-title:true}")
+    private boolean perTitle;
+    
+    // Full histogram buckets allow aggregation across nodes, at a few dozen series per title
+    @Value("${app.streaming.metrics.histogram:false}")
+    private boolean histogram;
+    
+    // Titles whose meters are kept ready; with per-title off there is one per quality
+    @Value("${app.streaming.metrics.max-cached-titles:10000}")
+    private long maxCachedTitles;
+    
+    private Cache<String, Meters> meters;
+    
+    @PostConstruct
+    public void init() {
+        meters = Caffeine.newBuilder()
+                .maximumSize(maxCachedTitles)
+                .build();
+    }
+    
+    // Starts measuring a response whose request arrived at startedNanos (System.nanoTime)
+    public StreamObservation start(String movieId, String quality, long startedNanos, long length) {
+        String movie = perTitle && movieId != null ? movieId : "all";
+        String rendition = quality != null ? quality : "unknown";
+        Meters response = meters.get(movie + "|" + rendition, key -> register(Tags.of("movie", movie,
+                "quality", rendition)));
+        response.rangeSize().record(length);
+        return new StreamObservation(response, startedNanos);
+    }
+    
+    private Meters register(Tags tags) {
+        Timer timeToFirstByte = Timer.builder("riyobox.stream.ttfb")
+                .description("Time from request to first body byte written")
+                .tags(tags)
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram(histogram)
+                .register(meterRegistry);
+        DistributionSummary throughput = DistributionSummary.builder("riyobox.stream.throughput")
+                .description("Sustained delivery rate of completed responses")
+                .baseUnit("bytes.per.second")
+                .tags(tags)
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram(histogram)
+                .register(meterRegistry);
+        DistributionSummary rangeSize = DistributionSummary.builder("riyobox.stream.range.size")
+                .description("Bytes requested per response")
+                .baseUnit("bytes")
+                .tags(tags)
+                .publishPercentiles(PERCENTILES)
+                .publishPercentileHistogram(histogram)
+                .register(meterRegistry);
+        Counter bytesServed = Counter.builder("riyobox.stream.bytes")
+                .description("Body bytes written to clients")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(meterRegistry);
+        Counter aborts = Counter.builder("riyobox.stream.aborts")
+                .description("Responses that ended before their last byte")
+                .tags(tags)
+                .register(meterRegistry);
+        // Share of blocks served per tier; origin is everything the caches missed
+        Map<CacheTier, Counter> blockReads = new EnumMap<>(CacheTier.class);
+        for (CacheTier tier : CacheTier.values()) {
+            blockReads.put(tier, Counter.builder("riyobox.stream.cache.reads")
+                    .description("Blocks served, by the tier they came from")
+                    .tags(tags)
+                    .tag("tier", tier.getTag())
+                    .register(meterRegistry));
+        }
+        return new Meters(timeToFirstByte, throughput, rangeSize, bytesServed, aborts, blockReads);
+    }
+    
+    record Meters(Timer timeToFirstByte, DistributionSummary throughput, DistributionSummary rangeSize,
+                  Counter bytesServed, Counter aborts, Map<CacheTier, Counter> blockReads) {
+    }
+}
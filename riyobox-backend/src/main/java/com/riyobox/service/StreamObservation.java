@@ -0,0 +1,87 @@
+package com.riyobox.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Meters of one response. Calls come from one thread at a time: the request thread, or the async writer
+// under its own lock.
+public class StreamObservation {
+    
+    private final StreamMetrics.Meters meters;
+    private final long startedNanos;
+    
+    private long firstByteNanos;
+    private long bytes;
+    private boolean ended;
+    
+    StreamObservation(StreamMetrics.Meters meters, long startedNanos) {
+        this.meters = meters;
+        this.startedNanos = startedNanos;
+    }
+    
+    public void written(long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+            meters.timeToFirstByte().record(firstByteNanos - startedNanos, TimeUnit.NANOSECONDS);
+        }
+        bytes += count;
+        meters.bytesServed().increment(count);
+    }
+    
+    void blockRead(CacheTier tier) {
+        meters.blockReads().get(tier).increment();
+    }
+    
+    // A response Tomcat sends with sendfile after the handler returns. Its bytes are counted, but time to first
+    // byte and throughput would only measure the handoff, so they are not recorded.
+    public void handedOff(long count) {
+        if (ended || count <= 0) {
+            return;
+        }
+        ended = true;
+        bytes += count;
+        meters.bytesServed().increment(count);
+    }
+    
+    public void completed() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        long elapsed = firstByteNanos == 0 ? 0 : System.nanoTime() - firstByteNanos;
+        // Single-buffer responses finish within a write and say nothing about sustained rate
+        if (elapsed >= TimeUnit.MILLISECONDS.toNanos(10)) {
+            meters.throughput().record(bytes * 1e9 / elapsed);
+        }
+    }
+    
+    public void aborted() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        meters.aborts().increment();
+    }
+    
+    // Counts bytes written through the stream, including channel writes built on it
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written(1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written(len);
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package com.riyobox.service;
+
+// Token buckets of one response. The limit bucket enforces the connection and plan rates; the fair-share
+// bucket tracks the stream's use against an equal split of the node and only matters under congestion.
+class StreamPacer {
+    
+    private final BandwidthShaper shaper;
+    private final TokenBucket limitBucket;
+    private final TokenBucket fairBucket;
+    private boolean closed;
+    
+    StreamPacer(BandwidthShaper shaper, long limitRate) {
+        this.shaper = shaper;
+        this.limitBucket = limitRate > 0 ? new TokenBucket(limitRate, limitRate * shaper.burstSeconds()) : null;
+        double fairShare = shaper.fairShare();
+        this.fairBucket = fairShare > 0 ? new TokenBucket(fairShare, fairShare * shaper.burstSeconds()) : null;
+    }
+    
+    // Takes the tokens for writing this many bytes, or returns how many nanoseconds to wait before asking again
+    synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        if (limitBucket != null) {
+            long wait = limitBucket.nanosUntil(bytes, now);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        long wait = shaper.reserveNode(bytes, this, now);
+        if (wait > 0) {
+            return wait;
+        }
+        if (limitBucket != null) {
+            limitBucket.consume(bytes);
+        }
+        // May go negative: a stream that used idle capacity is the first to yield once the node is busy
+        if (fairBucket != null) {
+            fairBucket.consume(bytes);
+        }
+        return 0;
+    }
+    
+    void resumeAfter(long delayNanos, Runnable task) {
+        shaper.schedule(task, delayNanos);
+    }
+    
+    // Called by the shaper with its lock held
+    long fairShareWait(int bytes, long now) {
+        double fairShare = shaper.fairShare();
+        fairBucket.setRate(fairShare, fairShare * shaper.burstSeconds());
+        return fairBucket.nanosUntil(bytes, now);
+    }
+    
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            shaper.closed();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.riyobox.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.media.FragmentIndex;
+import com.riyobox.media.Mp4BoxReader;
+import com.riyobox.media.Mp4Track;
+import com.riyobox.model.Movie;
+import com.riyobox.model.ObjectMetadata;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+// HLS and DASH manifests for a movie's fragmented MP4 renditions, addressed by byte range into the stored files
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamingManifestService {
+    
+    // Relative to /api/stream/movies/{id}/; segments are byte ranges of /api/stream/movies/{id}/{quality}/video
+    private static final String MEDIA_PLAYLIST = "playlist.m3u8";
+    private static final String VIDEO = "video";
+    
+    private final MovieService movieService;
+    private final ObjectMetadataService objectMetadataService;
+    private final VideoBlockService videoBlockService;
+    private final R2StorageService r2StorageService;
+    
+    @Value("${app.streaming.manifest.ttl-seconds:60}")
+    private long ttlSeconds;
+    
+    @Value("${app.streaming.manifest.max-indexes:2000}")
+    private int maxIndexes;
+    
+    @Value("${app.streaming.manifest.max-cached:10000}")
+    private int maxCached;
+    
+    // Generated manifests and rendition keys, regenerated after the TTL
+    private Cache<String, String> manifests;
+    
+    // Keyed by object version, so an entry never goes stale; empty means the file is not fragmented
+    private Cache<String, Optional<FragmentIndex>> indexes;
+    
+    @PostConstruct
+    public void init() {
+        manifests = Caffeine.newBuilder()
+                .maximumSize(maxCached)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .build();
+        indexes = Caffeine.newBuilder()
+                .maximumSize(maxIndexes)
+                .build();
+    }
+    
+    public String masterPlaylist(String movieId) {
+        return cached("master|" + movieId, () -> {
+            StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:7\n#EXT-X-INDEPENDENT-SEGMENTS\n");
+            for (Variant variant : variants(movieId)) {
+                FragmentIndex index = variant.index();
+                playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(index.peakBandwidth())
+                        .append(",AVERAGE-BANDWIDTH=").append(index.averageBandwidth());
+                codecs(index).ifPresent(codecs -> playlist.append(",CODECS=\"").append(codecs).append('"'));
+                videoTrack(index).ifPresent(track ->
+                        playlist.append(",RESOLUTION=").append(track.width()).append('x').append(track.height()));
+                playlist.append('\n').append(variant.quality()).append('/').append(MEDIA_PLAYLIST).append('\n');
+            }
+            return playlist.toString();
+        });
+    }
+    
+    public String mediaPlaylist(String movieId, String quality) {
+        return cached("media|" + movieId + "|" + quality, () -> {
+            FragmentIndex index = variant(movieId, quality).index();
+            StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:7\n")
+                    .append("#EXT-X-TARGETDURATION:").append((long) Math.ceil(index.maxSegmentDuration())).append('\n')
+                    .append("#EXT-X-MEDIA-SEQUENCE:0\n#EXT-X-PLAYLIST-TYPE:VOD\n")
+                    .append("#EXT-X-MAP:URI=\"").append(VIDEO).append("\",BYTERANGE=\"")
+                    .append(index.initLength()).append("@0\"\n");
+            for (FragmentIndex.Segment segment : index.segments()) {
+                playlist.append(String.format(Locale.ROOT, "#EXTINF:%.3f,%n", segment.duration()))
+                        .append("#EXT-X-BYTERANGE:").append(segment.size()).append('@').append(segment.offset())
+                        .append('\n').append(VIDEO).append('\n');
+            }
+            return playlist.append("#EXT-X-ENDLIST\n").toString();
+        });
+    }
+    
+    // On-demand profile: each rendition is one file described by its sidx, as the HLS playlists are
+    public String dashManifest(String movieId) {
+        return cached("mpd|" + movieId, () -> {
+            List<Variant> variants = variants(movieId);
+            double duration = variants.stream().mapToDouble(variant -> variant.index().duration()).max().orElse(0);
+            
+            StringBuilder mpd = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                    .append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\"")
+                    .append(" profiles=\"urn:mpeg:dash:profile:isoff-on-demand:2011\"")
+                    .append(String.format(Locale.ROOT, " mediaPresentationDuration=\"PT%.3fS\"", duration))
+                    .append(" minBufferTime=\"PT2S\">\n")
+                    .append("  <Period>\n")
+                    .append("    <AdaptationSet mimeType=\"video/mp4\" segmentAlignment=\"true\" startWithSAP=\"1\">\n");
+            for (Variant variant : variants) {
+                FragmentIndex index = variant.index();
+                mpd.append("      <Representation id=\"").append(variant.quality())
+                        .append("\" bandwidth=\"").append(index.peakBandwidth()).append('"');
+                codecs(index).ifPresent(codecs -> mpd.append(" codecs=\"").append(codecs).append('"'));
+                videoTrack(index).ifPresent(track -> mpd.append(" width=\"").append(track.width())
+                        .append("\" height=\"").append(track.height()).append('"'));
+                mpd.append(">\n")
+                        .append("        <BaseURL>").append(variant.quality()).append('/').append(VIDEO)
+                        .append("</BaseURL>\n")
+                        .append("        <SegmentBase indexRange=\"").append(index.indexStart()).append('-')
+                        .append(index.indexEnd()).append("\">\n")
+                        .append("          <Initialization range=\"0-").append(index.initLength() - 1)
+                        .append("\"/>\n")
+                        .append("        </SegmentBase>\n")
+                        .append("      </Representation>\n");
+            }
+            return mpd.append("    </AdaptationSet>\n  </Period>\n</MPD>\n").toString();
+        });
+    }
+    
+    // Object key behind a rendition, for the segment endpoint; cached so segment requests skip Mongo
+    public String resolveKey(String movieId, String quality) {
+        return cached("key|" + movieId + "|" + quality, () -> {
+            Movie movie = movieService.getMovieById(movieId);
+            if (!movie.isAvailableInQuality(quality)) {
+                throw new ResourceNotFoundException("Video", "quality", quality);
+            }
+            return r2StorageService.keyFromUrl(movie.getVideoUrls().get(quality));
+        });
+    }
+    
+    public Optional<FragmentIndex> fragmentIndex(ObjectMetadata object) {
+        Optional<FragmentIndex> index = indexes.getIfPresent(object.versionKey());
+        if (index != null) {
+            return index;
+        }
+        
+        try {
+            index = Mp4BoxReader.readFragmentIndex(
+                    (offset, length) -> videoBlockService.readRange(object, offset, length),
+                    object.getContentLength());
+        } catch (IOException | RuntimeException e) {
+            // Not cached: storage errors are usually transient
+            log.warn("Could not index {}: {}", object.getKey(), e.getMessage());
+            return Optional.empty();
+        }
+        indexes.put(object.versionKey(), index);
+        return index;
+    }
+    
+    private Variant variant(String movieId, String quality) {
+        return variants(movieId).stream()
+                .filter(variant -> variant.quality().equals(quality))
+                .findFirst()
+                .orElseThrow(() -> new ResourceNotFoundException("Adaptive stream", "quality", quality));
+    }
+    
+    // Renditions that are fragmented MP4 with a sidx, lowest bitrate first so players start cheap
+    private List<Variant> variants(String movieId) {
+        Movie movie = movieService.getMovieById(movieId);
+        Map<String, String> urls = movie.getVideoUrls();
+        if (urls == null || urls.isEmpty()) {
+            throw new ResourceNotFoundException("Adaptive stream", "movieId", movieId);
+        }
+        
+        List<Variant> variants = new ArrayList<>();
+        urls.forEach((quality, url) -> {
+            ObjectMetadata object = objectMetadataService.getMetadata(r2StorageService.keyFromUrl(url));
+            fragmentIndex(object).ifPresent(index -> variants.add(new Variant(quality, index)));
+        });
+        if (variants.isEmpty()) {
+            throw new ResourceNotFoundException("Adaptive stream", "movieId", movieId);
+        }
+        variants.sort(Comparator.comparingLong(variant -> variant.index().averageBandwidth()));
+        return variants;
+    }
+    
+    // Video first, then audio; left out entirely if any track's codec is unknown
+    private Optional<String> codecs(FragmentIndex index) {
+        List<String> codecs = index.tracks().stream()
+                .filter(track -> track.isVideo() || track.isAudio())
+                .sorted(Comparator.comparing(track -> track.isVideo() ? 0 : 1))
+                .map(Mp4Track::codecs)
+                .collect(Collectors.toList());
+        if (codecs.isEmpty() || codecs.stream().anyMatch(Objects::isNull)) {
+            return Optional.empty();
+        }
+        return Optional.of(String.join(",", codecs));
+    }
+    
+    private Optional<Mp4Track> videoTrack(FragmentIndex index) {
+        return index.tracks().stream()
+                .filter(track -> track.isVideo() && track.width() > 0 && track.height() > 0)
+                .findFirst();
+    }
+    
+    // Concurrent requests for a missing entry share one generation; failures are not cached
+    private String cached(String cacheKey, Supplier<String> generator) {
+        return manifests.get(cacheKey, key -> generator.get());
+    }
+    
+    private record Variant(String quality, FragmentIndex index) {
+    }
+}
@@ -0,0 +1,244 @@
+package com.riyobox.service;
+
+import com.riyobox.exception.BadRequestException;
+import com.riyobox.exception.ServiceUnavailableException;
+import com.riyobox.model.MediaObject;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Uploads that go from the request socket to R2 without touching local disk: the multipart/form-data body is
+// parsed as it arrives and the file part is cut into S3 multipart parts, several uploaded at once. A fixed
+// set of part buffers per upload bounds memory; reading the socket stalls while all of them are in flight.
+// Uploads reserve their buffers from a node-wide budget first, so concurrent uploads cannot add up past it.
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamingUploadService {
+    
+    private final S3Client s3Client;
+    private final R2StorageService r2StorageService;
+    private final MediaDedupService mediaDedupService;
+    
+    @Value("${app.storage.streaming-upload.part-size:16777216}")
+    private int partSize;
+    
+    @Value("${app.storage.streaming-upload.parallel-parts:4}")
+    private int parallelParts;
+    
+    @Value("${app.storage.streaming-upload.threads:16}")
+    private int threads;
+    
+    @Value("${app.storage.streaming-upload.max-buffers:20}")
+    private int maxBuffers;
+    
+    @Value("${app.storage.streaming-upload.buffer-wait-ms:2000}")
+    private long bufferWaitMillis;
+    
+    @Value("${app.storage.streaming-upload.retry-after-seconds:10}")
+    private long retryAfterSeconds;
+    
+    @Value("${app.storage.max-file-size-mb:2048}")
+    private long maxFileSizeMb;
+    
+    private ExecutorService partExecutor;
+    // Part buffers all uploads on this node may hold at once; an upload takes its whole set up front
+    private Semaphore bufferBudget;
+    
+    @PostConstruct
+    public void init() {
+        partExecutor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("upload-parts-"));
+        bufferBudget = new Semaphore(Math.max(maxBuffers, parallelParts + 1));
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        partExecutor.shutdownNow();
+    }
+    
+    // Stores the first file in a multipart/form-data body under the folder and returns its public URL
+    public String upload(String contentType, InputStream body, String folder) throws IOException {
+        MultipartBodyReader reader = new MultipartBodyReader(body, boundary(contentType));
+        int buffers = parallelParts + 1;
+        reserve(buffers);
+        try {
+            while (reader.nextPart()) {
+                String fileName = reader.fileName();
+                if (fileName != null && !fileName.isBlank()) {
+                    return store(reader.partStream(), fileName, reader.contentType(), folder);
+                }
+            }
+            throw new BadRequestException("Multipart body has no file");
+        } finally {
+            bufferBudget.release(buffers);
+        }
+    }
+    
+    // Waits briefly for other uploads to free their buffers, then turns the upload away with a 503
+    private void reserve(int buffers) throws IOException {
+        try {
+            if (!bufferBudget.tryAcquire(buffers, bufferWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new ServiceUnavailableException("Too many uploads in progress", retryAfterSeconds);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for upload buffers");
+        }
+    }
+    
+    private String boundary(String contentType) {
+        try {
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            String boundary = mediaType.getParameter("boundary");
+            if (MediaType.MULTIPART_FORM_DATA.includes(mediaType) && boundary != null) {
+                return boundary.startsWith("\"") ? boundary.substring(1, boundary.length() - 1) : boundary;
+            }
+        } catch (InvalidMediaTypeException e) {
+            // Reported below
+        }
+        throw new BadRequestException("Expected a multipart/form-data body with a boundary");
+    }
+    
+    private String store(InputStream part, String fileName, String contentType, String folder) throws IOException {
+        // Hashed on the way through; the hash is only known once every byte has been sent, so a duplicate still
+        // costs the full transfer and only the storage is saved
+        MessageDigest digest = MediaDedupService.newDigest();
+        InputStream in = new DigestInputStream(part, digest);
+        String key = folder + "/" + UUID.randomUUID() + "/" + fileName;
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(r2StorageService.getBucketName())
+                .key(key)
+                .contentType(contentType)
+                .build()).uploadId();
+        
+        // One buffer being filled plus one per part in flight, allocated as the upload grows
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(parallelParts + 1);
+        int allocated = 0;
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        long size = 0;
+        try {
+            for (int partNumber = 1; ; partNumber++) {
+                byte[] buffer = buffers.poll();
+                if (buffer == null) {
+                    buffer = allocated++ <= parallelParts ? new byte[partSize] : buffers.take();
+                }
+                int length = in.readNBytes(buffer, 0, partSize);
+                if (length == 0 && partNumber > 1) {
+                    break;
+                }
+                size += length;
+                if (size == 0) {
+                    throw new BadRequestException("Uploaded file is empty");
+                }
+                if (size > maxFileSizeMb * 1024 * 1024) {
+                    throw new BadRequestException("Uploaded file is larger than " + maxFileSizeMb + "MB");
+                }
+                
+                byte[] filled = buffer;
+                int number = partNumber;
+                parts.add(CompletableFuture
+                        .supplyAsync(() -> uploadPart(key, uploadId, number, filled, length), partExecutor)
+                        .whenComplete((part, error) -> buffers.add(filled)));
+                if (length < partSize || parts.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                    break;
+                }
+            }
+            
+            List<CompletedPart> completed = parts.stream().map(CompletableFuture::join).toList();
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(r2StorageService.getBucketName())
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(key, uploadId);
+            throw new InterruptedIOException("Upload of " + key + " interrupted");
+        } catch (CompletionException e) {
+            abort(key, uploadId);
+            throw e.getCause() instanceof RuntimeException runtime ? runtime : e;
+        } catch (IOException | RuntimeException e) {
+            // Usually the client hung up; parts already sent go away with the upload
+            abort(key, uploadId);
+            throw e;
+        }
+        
+        // A copy of something already stored: keep the old object and drop the new one, so storage stays flat.
+        // Clients that want to skip the transfer itself send the hash first, to /presigned or /multipart.
+        String contentHash = MediaDedupService.hex(digest);
+        Optional<MediaObject> existing = mediaDedupService.find(contentHash);
+        if (existing.isPresent()) {
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(r2StorageService.getBucketName())
+                    .key(key)
+                    .build());
+            return r2StorageService.getPublicUrl(existing.get().getObjectKey());
+        }
+        
+        r2StorageService.uploaded(key, size, contentType != null && contentType.startsWith("video/"));
+        mediaDedupService.register(contentHash, key, size, contentType);
+        return r2StorageService.getPublicUrl(key);
+    }
+    
+    private CompletedPart uploadPart(String key, String uploadId, int partNumber, byte[] data, int length) {
+        // A content provider rather than a stream, so SDK retries can replay the part from the buffer
+        String eTag = s3Client.uploadPart(UploadPartRequest.builder()
+                        .bucket(r2StorageService.getBucketName())
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength((long) length)
+                        .build(),
+                RequestBody.fromContentProvider(() -> new ByteArrayInputStream(data, 0, length), length,
+                        "application/octet-stream")).eTag();
+        return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+    }
+    
+    private void abort(String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(r2StorageService.getBucketName())
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (RuntimeException e) {
+            // The multipart upload sweeper retries it
+            log.warn("Could not abort upload {} of {}: {}", uploadId, key, e.getMessage());
+        }
+    }
+}
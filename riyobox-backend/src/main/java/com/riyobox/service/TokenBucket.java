@@ -0,0 +1,49 @@
+package com.riyobox.service;
+
+// Classic token bucket in bytes; not thread-safe, callers synchronize
+class TokenBucket {
+    
+    private double rate; // bytes per second
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+    
+    TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+    
+    void setRate(double rate, double capacity) {
+        refill(System.nanoTime());
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = Math.min(tokens, capacity);
+    }
+    
+    double getTokens(long now) {
+        refill(now);
+        return tokens;
+    }
+    
+    // Nanoseconds until the given number of bytes may be taken; 0 if they may now. A full bucket grants
+    // writes larger than its capacity and goes into debt, which later waits pay back.
+    long nanosUntil(long bytes, long now) {
+        refill(now);
+        double needed = Math.min(bytes, capacity);
+        if (tokens >= needed) {
+            return 0;
+        }
+        return (long) Math.ceil((needed - tokens) / rate * 1e9);
+    }
+    
+    void consume(long bytes) {
+        tokens -= bytes;
+    }
+    
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+}
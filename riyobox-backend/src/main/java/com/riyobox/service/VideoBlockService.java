@@ -0,0 +1,418 @@
+package com.riyobox.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.riyobox.exception.ResourceNotFoundException;
+import com.riyobox.model.ObjectMetadata;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32C;
+
+// Block-level access to stored video: memory tiers, then the disk chunk cache, then an async ranged GetObject
+@Service
+@RequiredArgsConstructor
+public class VideoBlockService {
+    
+    private final S3Client s3Client;
+    private final ObjectStorageService objectStorageService;
+    private final ChunkCacheService chunkCacheService;
+    private final MemoryBlockCacheService memoryBlockCacheService;
+    private final ObjectMetadataService objectMetadataService;
+    private final MeterRegistry meterRegistry;
+    
+    @Value("${cloudflare.r2.bucket-name}")
+    private String bucketName;
+    
+    @Value("${app.streaming.async.storage-threads:8}")
+    private int storageThreads;
+    
+    @Value("${app.streaming.cache.memory.promote-after:2}")
+    private int promoteAfter;
+    
+    @Value("${app.streaming.checksums.max-cached:100000}")
+    private long maxCachedChecksums;
+    
+    // Fetched blocks are written to the chunk cache here, off the SDK's event loop
+    private ExecutorService storageExecutor;
+    
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final Set<String> promoting = ConcurrentHashMap.newKeySet();
+    // CRC32C per block of a version, least recently used evicted first; a version's bytes never change, so
+    // entries never go stale
+    private Cache<String, Integer> checksums;
+    private Counter upstreamFetches;
+    private Counter coalescedFetches;
+    
+    @PostConstruct
+    public void init() {
+        storageExecutor = Executors.newFixedThreadPool(storageThreads,
+                new CustomizableThreadFactory("stream-storage-"));
+        checksums = Caffeine.newBuilder()
+                .maximumSize(maxCachedChecksums)
+                .build();
+        
+        upstreamFetches = Counter.builder("riyobox.stream.storage.fetches")
+                .description("Block fetches issued to object storage")
+                .register(meterRegistry);
+        coalescedFetches = Counter.builder("riyobox.stream.storage.coalesced")
+                .description("Block reads served by joining an in-flight fetch instead of issuing a new one")
+                .register(meterRegistry);
+        Gauge.builder("riyobox.stream.storage.in-flight", inFlight, Map::size)
+                .description("Block fetches currently in flight")
+                .register(meterRegistry);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        storageExecutor.shutdownNow();
+    }
+    
+    // Runs stream work that reads cached blocks, off threads that must not wait on the disk
+    void execute(Runnable task) {
+        storageExecutor.execute(task);
+    }
+    
+    public boolean isCacheEnabled() {
+        return chunkCacheService.isEnabled();
+    }
+    
+    public int getChunkSize() {
+        return chunkCacheService.getChunkSize();
+    }
+    
+    // Held by any cache tier
+    public boolean isCached(ObjectMetadata object, long index) {
+        return memoryBlockCacheService.contains(object.versionKey(), index)
+                || chunkCacheService.contains(object.versionKey(), index);
+    }
+    
+    // Tier a read of this block would come from if the memory tiers miss
+    public CacheTier storedTier(ObjectMetadata object, long index) {
+        return chunkCacheService.contains(object.versionKey(), index) ? CacheTier.DISK : CacheTier.ORIGIN;
+    }
+    
+    // Must be closed once read
+    public Optional<MemoryBlockCacheService.MemoryBlock> memoryBlock(ObjectMetadata object, long index) {
+        return memoryBlockCacheService.get(object.versionKey(), index);
+    }
+    
+    public Optional<Path> cachedBlock(ObjectMetadata object, long index) {
+        return diskBlock(object, index);
+    }
+    
+    // Holds the block's file on disk for a reader that opens it later; false if it has been evicted already
+    public boolean pinBlock(ObjectMetadata object, long index) {
+        return chunkCacheService.pin(object.versionKey(), index);
+    }
+    
+    // Moves a block already on disk into the disk tier's main region; false if it is not on disk
+    public boolean admitCachedBlock(ObjectMetadata object, long index) {
+        return chunkCacheService.admit(object.versionKey(), index);
+    }
+    
+    // Loads a block and places it in the disk tier's main region, bypassing frequency admission
+    public Path loadAdmittedBlock(ObjectMetadata object, long index) throws IOException {
+        Path path = loadBlock(object, index);
+        chunkCacheService.admit(object.versionKey(), index);
+        return path;
+    }
+    
+    // Concurrent misses for the same block share one upstream fetch
+    public CompletableFuture<Path> loadBlockAsync(ObjectMetadata object, long index) {
+        Optional<Path> cached = diskBlock(object, index);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+        
+        String flightKey = flightKey(object, index);
+        CompletableFuture<Path> flight = new CompletableFuture<>();
+        CompletableFuture<Path> leader = inFlight.putIfAbsent(flightKey, flight);
+        if (leader != null) {
+            coalescedFetches.increment();
+            return leader;
+        }
+        runFetch(object, index, flightKey, flight);
+        return flight;
+    }
+    
+    public Path loadBlock(ObjectMetadata object, long index) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Optional<Path> cached = diskBlock(object, index);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+            
+            String flightKey = flightKey(object, index);
+            CompletableFuture<Path> flight = new CompletableFuture<>();
+            CompletableFuture<Path> leader = inFlight.putIfAbsent(flightKey, flight);
+            if (leader == null) {
+                runFetch(object, index, flightKey, flight);
+                return await(flight);
+            }
+            
+            coalescedFetches.increment();
+            try {
+                return await(leader);
+            } catch (IOException | RuntimeException e) {
+                // The leader's failure may be its own (e.g. interrupted); fetch once more ourselves
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    private void runFetch(ObjectMetadata object, long index, String flightKey, CompletableFuture<Path> flight) {
+        fetchBlock(object, index).whenComplete((path, error) -> {
+            inFlight.remove(flightKey, flight);
+            if (error != null) {
+                flight.completeExceptionally(fetchError(object, ObjectStorageService.unwrap(error)));
+            } else {
+                flight.complete(path);
+            }
+        });
+    }
+    
+    private CompletableFuture<Path> fetchBlock(ObjectMetadata object, long index) {
+        // A flight that finished between our cache check and claiming the key already stored the block
+        Optional<Path> cached = chunkCacheService.get(object.versionKey(), index);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+        
+        long blockStart = index * chunkCacheService.getChunkSize();
+        long blockEnd = Math.min(blockStart + chunkCacheService.getChunkSize(), object.getContentLength()) - 1;
+        
+        upstreamFetches.increment();
+        return objectStorageService.getRangeHedged(object.getKey(), blockStart, blockEnd, object.getETag())
+                .thenApplyAsync(data -> {
+                    try {
+                        if (data.length != blockEnd - blockStart + 1) {
+                            throw new IOException("Short read for block " + index + " of " + object.getKey());
+                        }
+                        rememberChecksum(flightKey(object, index), data);
+                        Path path = chunkCacheService.put(object.versionKey(), index, ByteBuffer.wrap(data));
+                        if (isPromotable(object, index)) {
+                            memoryBlockCacheService.put(object.versionKey(), index, ByteBuffer.wrap(data));
+                        }
+                        return path;
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, storageExecutor);
+    }
+    
+    // CRC32C of one block as stored. Fetches record it as the block arrives; otherwise the block is read
+    // through the cache tiers.
+    public int blockChecksum(ObjectMetadata object, long index) throws IOException {
+        String key = flightKey(object, index);
+        Integer known = checksums.getIfPresent(key);
+        if (known != null) {
+            return known;
+        }
+        long blockStart = index * getChunkSize();
+        int length = (int) (Math.min(blockStart + getChunkSize(), object.getContentLength()) - blockStart);
+        return rememberChecksum(key, readRange(object, blockStart, length));
+    }
+    
+    // CRC32C of one block if it is known or the block is held by a cache tier; never reads from storage
+    public Optional<Integer> cachedBlockChecksum(ObjectMetadata object, long index) throws IOException {
+        String key = flightKey(object, index);
+        Integer known = checksums.getIfPresent(key);
+        if (known != null) {
+            return Optional.of(known);
+        }
+        Optional<MemoryBlockCacheService.MemoryBlock> memory = memoryBlock(object, index);
+        if (memory.isPresent()) {
+            try (MemoryBlockCacheService.MemoryBlock block = memory.get()) {
+                byte[] data = new byte[block.data().remaining()];
+                block.data().get(data);
+                return Optional.of(rememberChecksum(key, data));
+            }
+        }
+        Optional<Path> cached = chunkCacheService.get(object.versionKey(), index);
+        if (cached.isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(rememberChecksum(key, Files.readAllBytes(cached.get())));
+        } catch (NoSuchFileException e) {
+            // Evicted since the lookup
+            return Optional.empty();
+        }
+    }
+    
+    private int rememberChecksum(String key, byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        int checksum = (int) crc.getValue();
+        checksums.put(key, checksum);
+        return checksum;
+    }
+    
+    // Memory only takes blocks the disk tier's sketch has seen requested often enough, whether they come from
+    // disk or from origin, so one viewer reading a rare title straight through cannot push out the hot set
+    private boolean isPromotable(ObjectMetadata object, long index) {
+        return memoryBlockCacheService.isEnabled()
+                && chunkCacheService.frequency(object.versionKey(), index) >= promoteAfter;
+    }
+    
+    // Disk hits on promotable blocks are copied into memory in the background
+    private Optional<Path> diskBlock(ObjectMetadata object, long index) {
+        Optional<Path> cached = chunkCacheService.get(object.versionKey(), index);
+        if (cached.isPresent() && isPromotable(object, index)
+                && !memoryBlockCacheService.contains(object.versionKey(), index)) {
+            String promotionKey = flightKey(object, index);
+            if (promoting.add(promotionKey)) {
+                try {
+                    storageExecutor.execute(() -> {
+                        try {
+                            byte[] data = Files.readAllBytes(cached.get());
+                            memoryBlockCacheService.put(object.versionKey(), index, ByteBuffer.wrap(data));
+                        } catch (IOException e) {
+                            // Evicted meanwhile; the next read promotes it again
+                        } finally {
+                            promoting.remove(promotionKey);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    promoting.remove(promotionKey);
+                }
+            }
+        }
+        return cached;
+    }
+    
+    private Throwable fetchError(ObjectMetadata object, Throwable error) {
+        if (error instanceof S3Exception e) {
+            if (e.statusCode() == HttpStatus.PRECONDITION_FAILED.value()) {
+                // Replaced since we read its metadata; the next request picks up the new version
+                objectMetadataService.invalidate(object.getKey());
+                return new IOException(object.getKey() + " changed while streaming", e);
+            }
+            return translate(e, object.getKey());
+        }
+        return error;
+    }
+    
+    private Path await(CompletableFuture<Path> flight) throws IOException {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    private String flightKey(ObjectMetadata object, long index) {
+        return object.versionKey() + "#" + index;
+    }
+    
+    public FileChannel openBlock(ObjectMetadata object, long index) throws IOException {
+        try {
+            return FileChannel.open(loadBlock(object, index), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Evicted between lookup and open; fetch it again
+            chunkCacheService.evict(object.versionKey(), index);
+            return FileChannel.open(loadBlock(object, index), StandardOpenOption.READ);
+        }
+    }
+    
+    // Small reads for parsers (box headers, index boxes), through the chunk cache when it is on
+    public byte[] readRange(ObjectMetadata object, long offset, int length) throws IOException {
+        if (length == 0) {
+            return new byte[0];
+        }
+        if (!isCacheEnabled()) {
+            try (ResponseInputStream<GetObjectResponse> in = openStream(object.getKey(), offset, offset + length - 1)) {
+                return in.readAllBytes();
+            }
+        }
+        
+        byte[] data = new byte[length];
+        int chunkSize = getChunkSize();
+        int filled = 0;
+        while (filled < length) {
+            long position = offset + filled;
+            long index = position / chunkSize;
+            long blockOffset = position - index * chunkSize;
+            int count = (int) Math.min(length - filled, chunkSize - blockOffset);
+            
+            Optional<MemoryBlockCacheService.MemoryBlock> memory = memoryBlock(object, index);
+            if (memory.isPresent()) {
+                try (MemoryBlockCacheService.MemoryBlock block = memory.get()) {
+                    block.data().get((int) blockOffset, data, filled, count);
+                }
+                filled += count;
+                continue;
+            }
+            try (FileChannel channel = openBlock(object, index)) {
+                ByteBuffer target = ByteBuffer.wrap(data, filled, count);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, blockOffset + target.position() - filled) < 0) {
+                        throw new IOException("Cached block " + index + " of " + object.getKey() + " is truncated");
+                    }
+                }
+            }
+            filled += count;
+        }
+        return data;
+    }
+    
+    // Direct ranged read from storage, bypassing the chunk cache
+    public ResponseInputStream<GetObjectResponse> openStream(String key, long start, long end) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + start + "-" + end)
+                .build();
+        
+        try {
+            return s3Client.getObject(getObjectRequest);
+        } catch (S3Exception e) {
+            throw translate(e, key);
+        }
+    }
+    
+    private RuntimeException translate(S3Exception e, String key) {
+        if (e.statusCode() == HttpStatus.NOT_FOUND.value()) {
+            return new ResourceNotFoundException("Video", "key", key);
+        }
+        return e;
+    }
+}
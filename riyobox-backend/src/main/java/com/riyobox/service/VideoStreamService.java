@@ -0,0 +1,258 @@
+package com.riyobox.service;
+
+import com.riyobox.media.FaststartLayout;
+import com.riyobox.model.ObjectMetadata;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+@Service
+@RequiredArgsConstructor
+public class VideoStreamService {
+    
+    private final VideoBlockService videoBlockService;
+    private final ObjectMetadataService objectMetadataService;
+    private final ReadAheadPrefetcher readAheadPrefetcher;
+    private final R2StorageService r2StorageService;
+    private final BandwidthShaper bandwidthShaper;
+    
+    @Value("${app.streaming.async.enabled:true}")
+    private boolean asyncEnabled;
+    
+    @Value("${app.streaming.async.buffer-size:65536}")
+    private int asyncBufferSize;
+    
+    @Value("${app.streaming.multipart.parallel-blocks:4}")
+    private int multipartParallelBlocks;
+    
+    @Value("${app.streaming.redirect.enabled:false}")
+    private boolean redirectEnabled;
+    
+    @Value("${app.streaming.redirect.qualities:}")
+    private Set<String> redirectQualities;
+    
+    @Value("${app.streaming.redirect.plans:}")
+    private Set<String> redirectPlans;
+    
+    public ObjectMetadata getMetadata(String key) {
+        return objectMetadataService.getMetadata(key);
+    }
+    
+    // Streams for the configured qualities or plans go straight to storage; the rest stay proxied
+    // so we keep server-side control over them
+    public Optional<String> redirectUrl(String key, String quality, String plan) {
+        if (!redirectEnabled) {
+            return Optional.empty();
+        }
+        boolean offload = (quality != null && redirectQualities.contains(quality))
+                || (plan != null && redirectPlans.contains(plan));
+        return offload ? Optional.of(r2StorageService.presignGetUrl(key)) : Optional.empty();
+    }
+    
+    public int getChunkSize() {
+        return videoBlockService.getChunkSize();
+    }
+    
+    // CRC32C of [start, end] when it is exactly one block, base64 of the big-endian value as S3 reports it.
+    // Unless fetch is set, only a checksum that needs no read from storage is returned.
+    public Optional<String> chunkChecksum(ObjectMetadata object, long start, long end, boolean fetch)
+            throws IOException {
+        int chunkSize = videoBlockService.getChunkSize();
+        long index = start / chunkSize;
+        if (start % chunkSize != 0 || end != Math.min(start + chunkSize, object.getContentLength()) - 1) {
+            return Optional.empty();
+        }
+        Optional<Integer> checksum = fetch
+                ? Optional.of(videoBlockService.blockChecksum(object, index))
+                : videoBlockService.cachedBlockChecksum(object, index);
+        return checksum.map(value -> Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt(value).array()));
+    }
+    
+    // Async streaming reads from cached blocks, so it needs the chunk cache
+    public boolean isAsyncEnabled() {
+        return asyncEnabled && videoBlockService.isCacheEnabled();
+    }
+    
+    // Whether this plan's streams are paced. Paced output is only possible on the non-blocking path.
+    public boolean isPaced(String plan) {
+        return bandwidthShaper.isPaced(plan) && isAsyncEnabled();
+    }
+    
+    // Streams bytes [start, end] with non-blocking writes, paced to the viewer's plan when it has a ceiling;
+    // the calling thread returns immediately
+    public void streamAsync(AsyncContext asyncContext, ServletOutputStream out, String viewer, String plan,
+                            ObjectMetadata object, long start, long end, StreamObservation observation) {
+        StreamPacer pacer = bandwidthShaper.open(plan);
+        new AsyncVideoWriter(videoBlockService, readAheadPrefetcher, asyncContext, out, viewer,
+                pacer, observation, object, start, end, asyncBufferSize).start();
+    }
+    
+    // Writes bytes [start, end] of the object block by block. The servlet stream is not a file or socket channel,
+    // so transferTo still copies through heap buffers here; the zero-copy path is Tomcat sendfile over
+    // localSlice, and this is the fallback for ranges it cannot take.
+    public void transferRange(String viewer, ObjectMetadata object, long start, long end, OutputStream out,
+                              StreamObservation observation) throws IOException {
+        if (!videoBlockService.isCacheEnabled()) {
+            try (InputStream in = videoBlockService.openStream(object.getKey(), start, end)) {
+                in.transferTo(out);
+            }
+            return;
+        }
+        
+        WritableByteChannel target = Channels.newChannel(out);
+        int chunkSize = videoBlockService.getChunkSize();
+        long position = start;
+        try {
+            while (position <= end) {
+                long index = position / chunkSize;
+                long blockOffset = position - index * chunkSize;
+                long count = Math.min(end - position + 1, chunkSize - blockOffset);
+                
+                Optional<MemoryBlockCacheService.MemoryBlock> memory = videoBlockService.memoryBlock(object, index);
+                if (memory.isPresent()) {
+                    try (MemoryBlockCacheService.MemoryBlock block = memory.get()) {
+                        observation.blockRead(block.tier());
+                        readAheadPrefetcher.onBlockServed(viewer, object, index);
+                        ByteBuffer slice = block.data()
+                                .position((int) blockOffset)
+                                .limit((int) (blockOffset + count));
+                        while (slice.hasRemaining()) {
+                            target.write(slice);
+                        }
+                    }
+                    position += count;
+                    continue;
+                }
+                
+                observation.blockRead(videoBlockService.storedTier(object, index));
+                try (FileChannel channel = videoBlockService.openBlock(object, index)) {
+                    readAheadPrefetcher.onBlockServed(viewer, object, index);
+                    long sent = 0;
+                    while (sent < count) {
+                        long transferred = channel.transferTo(blockOffset + sent, count - sent, target);
+                        if (transferred <= 0) {
+                            throw new IOException("Cached block " + index + " of " + object.getKey() + " is truncated");
+                        }
+                        sent += transferred;
+                    }
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            // Usually the client hung up; stop reading ahead for it
+            readAheadPrefetcher.onStreamAborted(viewer, object.getKey());
+            throw e;
+        }
+    }
+    
+    // Bytes [start, end] of the presented file: with a faststart layout, the relocated moov comes from memory
+    // and everything else from the stored file at its shifted position
+    public void writeRange(String viewer, ObjectMetadata object, FaststartLayout layout, long start, long end,
+                           OutputStream out, StreamObservation observation) throws IOException {
+        if (layout == null) {
+            transferRange(viewer, object, start, end, out, observation);
+            return;
+        }
+        for (FaststartLayout.Piece piece : layout.pieces(start, end)) {
+            if (piece.relocatedMoov()) {
+                out.write(layout.moov(), (int) piece.start(), (int) (piece.end() - piece.start() + 1));
+            } else {
+                transferRange(viewer, object, piece.start(), piece.end(), out, observation);
+            }
+        }
+    }
+    
+    // Resolves a range that lies inside a single block to its file on local disk, fetching the block if needed.
+    // Empty when the block left the cache before it could be pinned; the copying paths serve those.
+    public Optional<LocalSlice> localSlice(String viewer, ObjectMetadata object, long start, long end,
+                                           StreamObservation observation) throws IOException {
+        int chunkSize = videoBlockService.getChunkSize();
+        long index = start / chunkSize;
+        if (!videoBlockService.isCacheEnabled() || end / chunkSize != index) {
+            return Optional.empty();
+        }
+        CacheTier tier = videoBlockService.storedTier(object, index);
+        Path path = videoBlockService.loadBlock(object, index);
+        // Tomcat opens the file after the handler returns, so eviction must not unlink it before then
+        if (!videoBlockService.pinBlock(object, index) || !Files.exists(path)) {
+            return Optional.empty();
+        }
+        observation.blockRead(tier);
+        readAheadPrefetcher.onBlockServed(viewer, object, index);
+        return Optional.of(new LocalSlice(path, start - index * chunkSize, end - start + 1));
+    }
+    
+    // Frames each range as a part of a multipart/byteranges body (RFC 9110 14.6) so the length is known up front
+    public MultipartRanges prepareMultipart(ObjectMetadata object, List<ByteRange> ranges) {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            String header = (partHeaders.isEmpty() ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + object.getContentType() + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + range.start() + "-" + range.end()
+                    + "/" + object.getContentLength() + "\r\n\r\n";
+            byte[] bytes = header.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range.length();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        return new MultipartRanges(boundary, ranges, partHeaders, trailer, contentLength + trailer.length);
+    }
+    
+    public void transferMultipart(String viewer, ObjectMetadata object, FaststartLayout layout,
+                                  MultipartRanges body, OutputStream out, StreamObservation observation)
+            throws IOException {
+        if (videoBlockService.isCacheEnabled() && layout == null) {
+            // Start every part's leading blocks at once so the parts cost one storage round trip, not one each
+            int chunkSize = videoBlockService.getChunkSize();
+            for (ByteRange range : body.ranges()) {
+                long last = Math.min(range.end() / chunkSize, range.start() / chunkSize + multipartParallelBlocks - 1);
+                for (long index = range.start() / chunkSize; index <= last; index++) {
+                    videoBlockService.loadBlockAsync(object, index);
+                }
+            }
+        }
+        
+        for (int i = 0; i < body.ranges().size(); i++) {
+            ByteRange range = body.ranges().get(i);
+            out.write(body.partHeaders().get(i));
+            writeRange(viewer, object, layout, range.start(), range.end(), out, observation);
+        }
+        out.write(body.trailer());
+    }
+    
+    public record LocalSlice(Path path, long offset, long length) {
+    }
+    
+    public record ByteRange(long start, long end) {
+        
+        public long length() {
+            return end - start + 1;
+        }
+    }
+    
+    public record MultipartRanges(String boundary, List<ByteRange> ranges, List<byte[]> partHeaders,
+                                  byte[] trailer, long contentLength) {
+    }
+}
@@ -0,0 +1,131 @@
+package com.riyobox.controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Concurrent slow-reader capacity of a running node: opens many stream requests that each read at a mobile
+// link's pace and reports how many got their first byte, and how fast. Run it once with
+// app.streaming.async.enabled=false (a Tomcat worker per viewer) and once with true to compare. Not part of
+// the regular build; point it at a node and a stream URL, e.g. one from POST /api/stream/.../session:
+//
+//   mvn test -Dtest=SlowReaderCapacityBenchmark -Dloadtest.url='http://host:8080/api/api/stream/...?pt=...'
+//
+// Optional: -Dloadtest.clients=1000 -Dloadtest.rate=65536 (bytes/s per reader) -Dloadtest.seconds=60
+// -Dloadtest.token=<JWT> for URLs without a playback token.
+class SlowReaderCapacityBenchmark {
+    
+    @Test
+    void slowReaders() throws InterruptedException {
+        String url = System.getProperty("loadtest.url");
+        assumeTrue(url != null, "loadtest.url is not set");
+        URI uri = URI.create(url);
+        int clients = Integer.getInteger("loadtest.clients", 1000);
+        int rate = Integer.getInteger("loadtest.rate", 64 * 1024);
+        int seconds = Integer.getInteger("loadtest.seconds", 60);
+        String token = System.getProperty("loadtest.token");
+        
+        List<Long> firstByteMillis = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(clients);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        
+        for (int i = 0; i < clients; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    long firstByte = read(uri, token, rate, deadline);
+                    if (firstByte >= 0) {
+                        firstByteMillis.add(firstByte);
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }, "slow-reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        done.await(seconds + 30L, TimeUnit.SECONDS);
+        
+        List<Long> sorted;
+        synchronized (firstByteMillis) {
+            sorted = new ArrayList<>(firstByteMillis);
+        }
+        Collections.sort(sorted);
+        System.out.printf("%d readers at %d B/s for %ds: %d got a first byte, %d never did, %d failed%n",
+                clients, rate, seconds, sorted.size(), clients - sorted.size() - failed.get(), failed.get());
+        if (!sorted.isEmpty()) {
+            System.out.printf("time to first byte: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted.get(sorted.size() - 1));
+        }
+    }
+    
+    // Milliseconds until the first response byte, or -1 if none arrived before the deadline. Reads on at the
+    // given rate until the deadline, so the connection stays open as a slow viewer's would.
+    private long read(URI uri, String token, int rate, long deadline) throws IOException {
+        int port = uri.getPort() > 0 ? uri.getPort() : 80;
+        long started = System.nanoTime();
+        try (Socket socket = new Socket(uri.getHost(), port)) {
+            socket.setReceiveBufferSize(rate);
+            socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - started)));
+            String request = "GET " + uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "")
+                    + " HTTP/1.1\r\nHost: " + uri.getHost() + "\r\n"
+                    + (token != null ? "Authorization: Bearer " + token + "\r\n" : "")
+                    + "Connection: close\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[Math.max(1, rate / 10)];
+            long firstByte = -1;
+            long received = 0;
+            while (System.nanoTime() < deadline) {
+                int read;
+                try {
+                    read = in.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (read < 0) {
+                    break;
+                }
+                if (firstByte < 0) {
+                    firstByte = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                }
+                received += read;
+                // Sleep off whatever was read ahead of the target rate
+                long aheadNanos = received * 1_000_000_000L / rate - (System.nanoTime() - started);
+                if (aheadNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(Math.min(aheadNanos, Math.max(0, deadline - System.nanoTime())));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            return firstByte;
+        }
+    }
+    
+    private long percentile(List<Long> sorted, double percentile) {
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(percentile * sorted.size())));
+    }
+}
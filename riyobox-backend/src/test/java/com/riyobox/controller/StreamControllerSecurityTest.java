@@ -0,0 +1,149 @@
+package com.riyobox.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.riyobox.config.SecurityConfig;
+import com.riyobox.model.ObjectMetadata;
+import com.riyobox.model.User;
+import com.riyobox.security.JwtAuthenticationFilter;
+import com.riyobox.security.PlaybackTokenFilter;
+import com.riyobox.service.DownloadService;
+import com.riyobox.service.JwtService;
+import com.riyobox.service.MediaIndexService;
+import com.riyobox.service.PlaybackTokenService;
+import com.riyobox.service.StreamMetrics;
+import com.riyobox.service.StreamObservation;
+import com.riyobox.service.StreamingManifestService;
+import com.riyobox.service.VideoStreamService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+// Stream requests as they reach the app behind the /api servlet context path: a playback-token URL must be
+// authorized by the token alone, without a JWT
+@WebMvcTest(StreamController.class)
+@ContextConfiguration(classes = {StreamController.class, SecurityConfig.class, PlaybackTokenFilter.class,
+        JwtAuthenticationFilter.class, PlaybackTokenService.class})
+@TestPropertySource(properties = "app.jwt.secret=stream-controller-security-test")
+class StreamControllerSecurityTest {
+    
+    private static final String CONTEXT_PATH = "/api";
+    private static final String KEY = "movie.mp4";
+    private static final String JWT = "header.payload.signature";
+    
+    private final User user = User.builder()
+            .id("user-1")
+            .email("viewer@riyobox.com")
+            .subscriptionPlan("premium")
+            .build();
+    
+    @Autowired
+    private MockMvc mockMvc;
+    
+    @Autowired
+    private PlaybackTokenService playbackTokenService;
+    
+    @MockBean
+    private VideoStreamService videoStreamService;
+    
+    @MockBean
+    private StreamingManifestService streamingManifestService;
+    
+    @MockBean
+    private MediaIndexService mediaIndexService;
+    
+    @MockBean
+    private StreamMetrics streamMetrics;
+    
+    @MockBean
+    private DownloadService downloadService;
+    
+    @MockBean
+    private JwtService jwtService;
+    
+    @MockBean
+    private UserDetailsService userDetailsService;
+    
+    @BeforeEach
+    void setUp() {
+        when(videoStreamService.getMetadata(KEY)).thenReturn(ObjectMetadata.builder()
+                .key(KEY)
+                .contentLength(1000)
+                .eTag("\"etag\"")
+                .contentType("video/mp4")
+                .lastModified(Instant.parse("2024-01-01T00:00:00Z"))
+                .build());
+        when(streamMetrics.start(any(), any(), anyLong(), anyLong())).thenReturn(mock(StreamObservation.class));
+        
+        when(jwtService.extractUsername(JWT)).thenReturn(user.getEmail());
+        when(userDetailsService.loadUserByUsername(user.getEmail())).thenReturn(user);
+        when(jwtService.validateToken(eq(JWT), any())).thenReturn(true);
+    }
+    
+    @Test
+    void tokenizedUrlWithoutJwtGetsPartialContent() throws Exception {
+        String token = playbackTokenService.issue(user, "video/" + KEY, null).token();
+        
+        mockMvc.perform(get(CONTEXT_PATH + StreamController.BASE_PATH + "/video/" + KEY)
+                        .contextPath(CONTEXT_PATH)
+                        .param(PlaybackTokenFilter.TOKEN_PARAMETER, token)
+                        .header(HttpHeaders.RANGE, "bytes=0-99"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 0-99/1000"));
+    }
+    
+    @Test
+    void sessionUrlCarriesTheContextPathAndPlaysWithoutJwt() throws Exception {
+        String body = mockMvc.perform(post(CONTEXT_PATH + StreamController.BASE_PATH + "/video/" + KEY + "/session")
+                        .contextPath(CONTEXT_PATH)
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + JWT))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String url = (String) new ObjectMapper().readValue(body, Map.class).get("url");
+        assertThat(url).startsWith(CONTEXT_PATH + StreamController.BASE_PATH + "/video/" + KEY + "?");
+        
+        mockMvc.perform(get(url)
+                        .contextPath(CONTEXT_PATH)
+                        .header(HttpHeaders.RANGE, "bytes=0-99"))
+                .andExpect(status().isPartialContent());
+    }
+    
+    @Test
+    void tokenForAnotherStreamIsRejected() throws Exception {
+        String token = playbackTokenService.issue(user, "video/other.mp4", null).token();
+        
+        mockMvc.perform(get(CONTEXT_PATH + StreamController.BASE_PATH + "/video/" + KEY)
+                        .contextPath(CONTEXT_PATH)
+                        .param(PlaybackTokenFilter.TOKEN_PARAMETER, token)
+                        .header(HttpHeaders.RANGE, "bytes=0-99"))
+                .andExpect(status().is4xxClientError());
+    }
+    
+    @Test
+    void streamWithoutTokenOrJwtIsRejected() throws Exception {
+        mockMvc.perform(get(CONTEXT_PATH + StreamController.BASE_PATH + "/video/" + KEY)
+                        .contextPath(CONTEXT_PATH)
+                        .header(HttpHeaders.RANGE, "bytes=0-99"))
+                .andExpect(status().is4xxClientError());
+    }
+}
@@ -0,0 +1,57 @@
+package com.riyobox.media;
+
+import com.riyobox.media.FaststartLayout.Piece;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FaststartLayoutTest {
+    
+    // ftyp ends at 32, the 100-byte moov is stored at 1000: presented as [0,32) [moov) [32,1000) [1100,...)
+    private static final long INSERT_AT = 32;
+    private static final long MOOV_OFFSET = 1000;
+    private final FaststartLayout layout = new FaststartLayout(INSERT_AT, MOOV_OFFSET, new byte[100]);
+    
+    @Test
+    void wholeFileSplitsIntoHeadMoovMiddleAndTail() {
+        assertEquals(List.of(
+                new Piece(false, 0, 31),
+                new Piece(true, 0, 99),
+                new Piece(false, 32, 999),
+                new Piece(false, 1100, 1999)), layout.pieces(0, 1999));
+    }
+    
+    @Test
+    void rangesWithinOneRegionMapToOnePiece() {
+        assertEquals(List.of(new Piece(false, 0, 9)), layout.pieces(0, 9));
+        assertEquals(List.of(new Piece(true, 10, 19)), layout.pieces(42, 51));
+        assertEquals(List.of(new Piece(false, 40, 49)), layout.pieces(140, 149));
+        assertEquals(List.of(new Piece(false, 1200, 1299)), layout.pieces(1200, 1299));
+    }
+    
+    @Test
+    void rangesAcrossBoundariesAreSplit() {
+        assertEquals(List.of(new Piece(false, 30, 31), new Piece(true, 0, 1)), layout.pieces(30, 33));
+        assertEquals(List.of(new Piece(true, 98, 99), new Piece(false, 32, 33)), layout.pieces(130, 133));
+        // The stored moov itself is never served from the tail
+        assertEquals(List.of(new Piece(false, 998, 999), new Piece(false, 1100, 1101)), layout.pieces(1098, 1101));
+    }
+    
+    @Test
+    void mapsStoredOffsetsToPresentedOnes() {
+        assertEquals(10, layout.toPresented(10));
+        assertEquals(132, layout.toPresented(32));
+        assertEquals(1099, layout.toPresented(999));
+        assertEquals(1200, layout.toPresented(1200));
+    }
+    
+    @Test
+    void sourceStartOnlyForRangesInOneStoredRegion() {
+        assertEquals(OptionalLong.of(40), layout.sourceStart(140, 149));
+        assertEquals(OptionalLong.empty(), layout.sourceStart(40, 50));
+        assertEquals(OptionalLong.empty(), layout.sourceStart(30, 40));
+    }
+}
@@ -0,0 +1,146 @@
+package com.riyobox.media;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Mp4BoxReaderTest {
+    
+    @Test
+    void readsTopLevelBoxesThroughRangedReads() throws IOException {
+        byte[] file = concat(box("ftyp", new byte[8]), box("moov", new byte[20]), box("mdat", new byte[100]));
+        
+        List<Mp4Box> boxes = Mp4BoxReader.readTopLevel(reader(file), file.length);
+        
+        assertEquals(List.of(new Mp4Box("ftyp", 0, 8, 16), new Mp4Box("moov", 16, 8, 28),
+                new Mp4Box("mdat", 44, 8, 108)), boxes);
+    }
+    
+    @Test
+    void readsLargeSizeAndToEndOfFileHeaders() throws IOException {
+        ByteBuffer large = ByteBuffer.allocate(16 + 4);
+        large.putInt(1).put(fourCc("mdat")).putLong(20);
+        byte[] toEnd = concat(box("ftyp", new byte[8]), header(0, "mdat"), new byte[50]);
+        
+        assertEquals(List.of(new Mp4Box("mdat", 0, 16, 20)), Mp4BoxReader.readTopLevel(reader(large.array()), 20));
+        assertEquals(new Mp4Box("mdat", 16, 8, 58), Mp4BoxReader.readTopLevel(reader(toEnd), toEnd.length).get(1));
+    }
+    
+    @Test
+    void rejectsBoxesThatOverrunTheFile() {
+        byte[] file = concat(header(64, "moov"), new byte[8]);
+        
+        assertThrows(IOException.class, () -> Mp4BoxReader.readTopLevel(reader(file), file.length));
+    }
+    
+    @Test
+    void readsKeyframesFromSampleTables() throws IOException {
+        byte[] moov = moov(1000, 5000);
+        byte[] moovBody = Arrays.copyOfRange(moov, 8, moov.length);
+        
+        KeyframeTable keyframes = Mp4BoxReader.readKeyframes(moovBody).orElseThrow();
+        
+        // Samples 1 and 4 are sync samples: the first of each chunk, 1500 ms apart
+        assertArrayEquals(new long[]{0, 1500}, keyframes.timesMillis());
+        assertArrayEquals(new long[]{1000, 5000}, keyframes.offsets());
+        assertEquals(1, keyframes.floorByTime(2000));
+        assertEquals(0, keyframes.floorByOffset(4999));
+    }
+    
+    @Test
+    void relocatesOnlyChunkOffsetsInTheGivenRange() throws IOException {
+        byte[] moov = moov(1000, 5000);
+        
+        byte[] relocated = Mp4BoxReader.relocateMoov(moov, 300, 0, 4000);
+        
+        assertEquals(moov.length, relocated.length);
+        KeyframeTable keyframes = Mp4BoxReader.readKeyframes(Arrays.copyOfRange(relocated, 8, relocated.length))
+                .orElseThrow();
+        assertArrayEquals(new long[]{1300, 5000}, keyframes.offsets());
+        // The source is left untouched
+        assertArrayEquals(new long[]{1000, 5000}, Mp4BoxReader.readKeyframes(Arrays.copyOfRange(moov, 8,
+                moov.length)).orElseThrow().offsets());
+    }
+    
+    @Test
+    void parsesSidxReferencesIntoSegments() throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(24 + 2 * 12);
+        body.putInt(0).putInt(1).putInt(1000).putInt(0).putInt(10).putShort((short) 0).putShort((short) 2);
+        body.putInt(4000).putInt(2000).putInt(0);
+        body.putInt(6000).putInt(3000).putInt(0);
+        Mp4Box sidx = new Mp4Box("sidx", 500, 8, 8 + body.capacity());
+        
+        List<FragmentIndex.Segment> segments = Mp4BoxReader.parseSidx(body.array(), sidx);
+        
+        // First fragment starts first_offset bytes after the sidx
+        assertEquals(List.of(new FragmentIndex.Segment(sidx.end() + 10, 4000, 2.0),
+                new FragmentIndex.Segment(sidx.end() + 4010, 6000, 3.0)), segments);
+    }
+    
+    @Test
+    void fragmentIndexIsEmptyForProgressiveFiles() throws IOException {
+        byte[] file = concat(box("ftyp", new byte[8]), moov(100, 200), box("mdat", new byte[100]));
+        
+        assertTrue(Mp4BoxReader.readFragmentIndex(reader(file), file.length).isEmpty());
+    }
+    
+    // One video track, timescale 1000, six 100-byte samples of 500 ms in two chunks of three at the given offsets,
+    // with samples 1 and 4 as sync samples
+    private static byte[] moov(int firstChunk, int secondChunk) {
+        ByteBuffer mdhd = ByteBuffer.allocate(24);
+        mdhd.putInt(0).putInt(0).putInt(0).putInt(1000).putInt(3000);
+        ByteBuffer hdlr = ByteBuffer.allocate(25);
+        hdlr.putInt(0).putInt(0).put(fourCc("vide"));
+        
+        ByteBuffer stts = ByteBuffer.allocate(16);
+        stts.putInt(0).putInt(1).putInt(6).putInt(500);
+        ByteBuffer stss = ByteBuffer.allocate(16);
+        stss.putInt(0).putInt(2).putInt(1).putInt(4);
+        ByteBuffer stsc = ByteBuffer.allocate(20);
+        stsc.putInt(0).putInt(1).putInt(1).putInt(3).putInt(1);
+        ByteBuffer stsz = ByteBuffer.allocate(12);
+        stsz.putInt(0).putInt(100).putInt(6);
+        ByteBuffer stco = ByteBuffer.allocate(16);
+        stco.putInt(0).putInt(2).putInt(firstChunk).putInt(secondChunk);
+        
+        byte[] stbl = box("stbl", concat(box("stts", stts.array()), box("stss", stss.array()),
+                box("stsc", stsc.array()), box("stsz", stsz.array()), box("stco", stco.array())));
+        byte[] mdia = box("mdia", concat(box("mdhd", mdhd.array()), box("hdlr", hdlr.array()),
+                box("minf", stbl)));
+        return box("moov", box("trak", mdia));
+    }
+    
+    private static Mp4BoxReader.RangeReader reader(byte[] file) {
+        return (offset, length) -> Arrays.copyOfRange(file, (int) offset, (int) offset + length);
+    }
+    
+    private static byte[] box(String type, byte[] body) {
+        return concat(header(8 + body.length, type), body);
+    }
+    
+    private static byte[] header(int size, String type) {
+        return ByteBuffer.allocate(8).putInt(size).put(fourCc(type)).array();
+    }
+    
+    private static byte[] fourCc(String type) {
+        return type.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,63 @@
+package com.riyobox.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BandwidthShaperTest {
+    
+    private BandwidthShaper shaper;
+    
+    @AfterEach
+    void shutdown() {
+        if (shaper != null) {
+            shaper.shutdown();
+        }
+    }
+    
+    @Test
+    void nothingIsPacedWhileShapingIsOff() {
+        shaper = shaper(false, 0, 1000000, 0);
+        
+        assertFalse(shaper.isPaced("free"));
+        assertNull(shaper.open("free"));
+    }
+    
+    @Test
+    void onlyPlansWithACeilingArePaced() {
+        shaper = shaper(true, 0, 1000000, 0);
+        
+        assertTrue(shaper.isPaced("free"));
+        assertTrue(shaper.isPaced(null));
+        assertFalse(shaper.isPaced("pro"));
+        assertNull(shaper.open("pro"));
+        
+        StreamPacer pacer = shaper.open("free");
+        assertNotNull(pacer);
+        pacer.close();
+    }
+    
+    @Test
+    void aNodeRatePacesEveryPlan() {
+        shaper = shaper(true, 125000000, 1000000, 0);
+        
+        assertTrue(shaper.isPaced("pro"));
+    }
+    
+    private static BandwidthShaper shaper(boolean enabled, long nodeRate, long freeRate, long proRate) {
+        BandwidthShaper shaper = new BandwidthShaper();
+        ReflectionTestUtils.setField(shaper, "enabled", enabled);
+        ReflectionTestUtils.setField(shaper, "nodeRate", nodeRate);
+        ReflectionTestUtils.setField(shaper, "burstSeconds", 2.0);
+        ReflectionTestUtils.setField(shaper, "freeRate", freeRate);
+        ReflectionTestUtils.setField(shaper, "premiumRate", freeRate);
+        ReflectionTestUtils.setField(shaper, "proRate", proRate);
+        shaper.init();
+        return shaper;
+    }
+}
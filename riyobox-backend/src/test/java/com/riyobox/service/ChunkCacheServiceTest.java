@@ -0,0 +1,122 @@
+package com.riyobox.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkCacheServiceTest {
+    
+    private static final int CHUNK_SIZE = 100;
+    
+    private Path directory;
+    private ChunkCacheService cache;
+    
+    // Room for ten blocks, one of them in the admission window
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("chunk-cache-test");
+        cache = new ChunkCacheService(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "chunkSize", CHUNK_SIZE);
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "directory", directory.toString());
+        ReflectionTestUtils.setField(cache, "maxSize", 10L * CHUNK_SIZE);
+        ReflectionTestUtils.setField(cache, "windowPercent", 10.0);
+        ReflectionTestUtils.setField(cache, "pinMillis", 10000L);
+        cache.init();
+    }
+    
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+    
+    @Test
+    void aScanThroughARareTitleLeavesTheHotSetCached() throws IOException {
+        for (long index = 0; index < 9; index++) {
+            read("hot", index, 5);
+        }
+        
+        for (long index = 0; index < 50; index++) {
+            read("scan", index, 1);
+        }
+        
+        for (long index = 0; index < 9; index++) {
+            assertTrue(cache.contains("hot", index), "hot block " + index + " was evicted");
+        }
+        // Only the newest scanned block, still in the window, is kept
+        assertEquals(1, LongStream.range(0, 50).filter(index -> cache.contains("scan", index)).count());
+        assertTrue(cache.getCurrentSize() <= 10L * CHUNK_SIZE);
+    }
+    
+    @Test
+    void aBlockRequestedMoreOftenThanTheVictimIsAdmitted() throws IOException {
+        for (long index = 0; index < 9; index++) {
+            read("warm", index, 2);
+        }
+        read("scan", 0, 1);
+        
+        read("popular", 0, 6);
+        read("scan", 1, 1);
+        
+        assertTrue(cache.contains("popular", 0));
+        assertEquals(8, LongStream.range(0, 9).filter(index -> cache.contains("warm", index)).count());
+    }
+    
+    @Test
+    void admittedBlocksSkipTheFrequencyCheck() throws IOException {
+        for (long index = 0; index < 8; index++) {
+            read("hot", index, 5);
+        }
+        cache.put("prewarmed", 0, ByteBuffer.wrap(new byte[CHUNK_SIZE]));
+        assertTrue(cache.admit("prewarmed", 0));
+        cache.put("prewarmed", 1, ByteBuffer.wrap(new byte[CHUNK_SIZE]));
+        
+        for (long index = 0; index < 20; index++) {
+            read("scan", index, 1);
+        }
+        
+        assertTrue(cache.contains("prewarmed", 0));
+        assertFalse(cache.contains("prewarmed", 1));
+        assertFalse(cache.admit("prewarmed", 1));
+    }
+    
+    @Test
+    void pinnedBlocksAreNotEvicted() throws IOException {
+        read("pinned", 0, 1);
+        assertTrue(cache.pin("pinned", 0));
+        
+        for (long index = 0; index < 50; index++) {
+            read("scan", index, 3);
+        }
+        
+        assertTrue(cache.contains("pinned", 0));
+        assertFalse(cache.pin("scan", 0));
+    }
+    
+    // Requests a block the given number of times, storing it on the first miss as a fetch would
+    private void read(String key, long index, int times) throws IOException {
+        for (int i = 0; i < times; i++) {
+            if (cache.get(key, index).isEmpty()) {
+                cache.put(key, index, ByteBuffer.wrap(new byte[CHUNK_SIZE]));
+            }
+        }
+    }
+}
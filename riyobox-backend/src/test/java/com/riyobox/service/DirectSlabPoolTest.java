@@ -0,0 +1,42 @@
+package com.riyobox.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectSlabPoolTest {
+    
+    @Test
+    void neverAllocatesMoreThanMaxSlabs() {
+        DirectSlabPool pool = new DirectSlabPool(1024, 2);
+        
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        
+        assertTrue(first.isDirect());
+        assertEquals(1024, first.capacity());
+        assertNull(pool.acquire());
+        assertEquals(2, pool.allocated());
+        pool.release(second);
+    }
+    
+    @Test
+    void releasedSlabsAreReusedCleared() {
+        DirectSlabPool pool = new DirectSlabPool(1024, 1);
+        ByteBuffer slab = pool.acquire();
+        slab.put(new byte[100]).flip();
+        
+        pool.release(slab);
+        ByteBuffer reused = pool.acquire();
+        
+        assertSame(slab, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1024, reused.limit());
+        assertEquals(1, pool.allocated());
+    }
+}
@@ -0,0 +1,63 @@
+package com.riyobox.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrequencySketchTest {
+    
+    @Test
+    void countsIncrementsPerKey() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("warm");
+        
+        assertEquals(5, sketch.frequency("hot"));
+        assertEquals(1, sketch.frequency("warm"));
+        assertEquals(0, sketch.frequency("cold"));
+    }
+    
+    @Test
+    void countersSaturateAtFifteen() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot");
+        }
+        
+        assertEquals(15, sketch.frequency("hot"));
+    }
+    
+    @Test
+    void countsAreHalvedAfterASample() {
+        // Sized for 16 entries, so the sample is 160 additions
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 14; i++) {
+            sketch.increment("hot");
+        }
+        for (int i = 0; i < 200; i++) {
+            sketch.increment("other-" + i);
+        }
+        
+        int frequency = sketch.frequency("hot");
+        assertTrue(frequency >= 7 && frequency <= 9, "frequency was " + frequency);
+    }
+    
+    @Test
+    void distinctKeysRarelyShareCounts() {
+        FrequencySketch sketch = new FrequencySketch(4096);
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment("block-" + i);
+        }
+        
+        int overcounted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sketch.frequency("block-" + i) > 1) {
+                overcounted++;
+            }
+        }
+        assertTrue(overcounted < 10, overcounted + " keys overcounted");
+    }
+}
@@ -0,0 +1,122 @@
+package com.riyobox.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartBodyReaderTest {
+    
+    private static final String BOUNDARY = "----boundary42";
+    
+    @Test
+    void readsFieldsAndFilesInOrder() throws IOException {
+        byte[] body = body("preamble is ignored\r\n",
+                part("form-data; name=\"title\"", null, ascii("Movie")),
+                part("form-data; name=\"file\"; filename=\"movie.mp4\"", "video/mp4", ascii("mp4 bytes")));
+        MultipartBodyReader reader = new MultipartBodyReader(new ByteArrayInputStream(body), BOUNDARY);
+        
+        assertTrue(reader.nextPart());
+        assertNull(reader.fileName());
+        assertEquals("Movie", new String(reader.partStream().readAllBytes(), StandardCharsets.US_ASCII));
+        
+        assertTrue(reader.nextPart());
+        assertEquals("movie.mp4", reader.fileName());
+        assertEquals("video/mp4", reader.contentType());
+        assertEquals("mp4 bytes", new String(reader.partStream().readAllBytes(), StandardCharsets.US_ASCII));
+        
+        assertFalse(reader.nextPart());
+        assertFalse(reader.nextPart());
+    }
+    
+    @Test
+    void skipsPartsThatAreNotRead() throws IOException {
+        byte[] body = body("",
+                part("form-data; name=\"skipped\"", null, new byte[200000]),
+                part("form-data; name=\"file\"; filename=\"a.bin\"", null, ascii("kept")));
+        MultipartBodyReader reader = new MultipartBodyReader(new ByteArrayInputStream(body), BOUNDARY);
+        
+        assertTrue(reader.nextPart());
+        assertTrue(reader.nextPart());
+        assertEquals("a.bin", reader.fileName());
+        assertEquals("kept", new String(reader.partStream().readAllBytes(), StandardCharsets.US_ASCII));
+    }
+    
+    @Test
+    void partsLargerThanTheBufferSurviveShortReads() throws IOException {
+        // Several buffers of data, sprinkled with partial delimiters that must pass through as content
+        byte[] data = new byte[300000];
+        new Random(7).nextBytes(data);
+        byte[] almost = ascii("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1));
+        for (int at = 1000; at + almost.length < data.length; at += 65536 - 3) {
+            System.arraycopy(almost, 0, data, at, almost.length);
+        }
+        byte[] body = body("", part("form-data; name=\"file\"; filename=\"big.bin\"", null, data));
+        MultipartBodyReader reader = new MultipartBodyReader(trickle(body, 4093), BOUNDARY);
+        
+        assertTrue(reader.nextPart());
+        assertArrayEquals(data, reader.partStream().readAllBytes());
+        assertFalse(reader.nextPart());
+    }
+    
+    @Test
+    void bodyThatEndsWithoutTheClosingDelimiterFails() throws IOException {
+        byte[] body = body("", part("form-data; name=\"file\"; filename=\"cut.bin\"", null, new byte[1000]));
+        byte[] truncated = Arrays.copyOf(body, body.length - 40);
+        MultipartBodyReader reader = new MultipartBodyReader(new ByteArrayInputStream(truncated), BOUNDARY);
+        
+        assertTrue(reader.nextPart());
+        assertThrows(EOFException.class, () -> reader.partStream().readAllBytes());
+    }
+    
+    private static byte[] part(String disposition, String contentType, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ascii("--" + BOUNDARY + "\r\nContent-Disposition: " + disposition + "\r\n"));
+        if (contentType != null) {
+            out.writeBytes(ascii("Content-Type: " + contentType + "\r\n"));
+        }
+        out.writeBytes(ascii("\r\n"));
+        out.writeBytes(content);
+        out.writeBytes(ascii("\r\n"));
+        return out.toByteArray();
+    }
+    
+    private static byte[] body(String preamble, byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ascii(preamble));
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        out.writeBytes(ascii("--" + BOUNDARY + "--\r\n"));
+        return out.toByteArray();
+    }
+    
+    // Hands out at most maxRead bytes per read, like a socket does
+    private static InputStream trickle(byte[] body, int maxRead) {
+        return new FilterInputStream(new ByteArrayInputStream(body)) {
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, maxRead));
+            }
+        };
+    }
+    
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,79 @@
+package com.riyobox.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Signatures per second for presigned PUT URLs with a presigner built per call, as generatePresignedUrl did
+// before the shared StorageConfig bean, against one shared presigner. Signing is local, so the dummy credentials
+// and endpoint never reach the network. Not part of the regular build (surefire only picks up *Test classes);
+// run with: mvn test -Dtest=PresignBenchmark
+@Slf4j
+class PresignBenchmark {
+    
+    private static final int WARMUP_SIGNATURES = 2000;
+    private static final int SIGNATURES = 10000;
+    
+    @Test
+    void presignerPerCallAgainstSharedPresigner() {
+        double perCall = measure(() -> {
+            try (S3Presigner presigner = presigner()) {
+                return sign(presigner);
+            }
+        });
+        try (S3Presigner shared = presigner()) {
+            double reused = measure(() -> sign(shared));
+            
+            log.info("presigner per call: {} signatures/s", Math.round(perCall));
+            log.info("shared presigner: {} signatures/s ({}x)", Math.round(reused),
+                    String.format("%.1f", reused / perCall));
+        }
+    }
+    
+    private static double measure(Supplier<String> signer) {
+        for (int i = 0; i < WARMUP_SIGNATURES; i++) {
+            signer.get();
+        }
+        long started = System.nanoTime();
+        for (int i = 0; i < SIGNATURES; i++) {
+            assertTrue(signer.get().contains("X-Amz-Signature="));
+        }
+        return SIGNATURES / ((System.nanoTime() - started) / 1e9);
+    }
+    
+    // Same request R2StorageService.presignPutUrl signs, for a fresh key each time
+    private static String sign(S3Presigner presigner) {
+        return presigner.presignPutObject(PutObjectPresignRequest.builder()
+                        .signatureDuration(Duration.ofMinutes(15))
+                        .putObjectRequest(PutObjectRequest.builder()
+                                .bucket("riyobox-benchmark")
+                                .key("uploads/" + UUID.randomUUID() + "/movie.mp4")
+                                .contentType("video/mp4")
+                                .build())
+                        .build())
+                .url()
+                .toString();
+    }
+    
+    // Built the way StorageConfig.s3Presigner builds the shared one
+    private static S3Presigner presigner() {
+        return S3Presigner.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create("benchmark-access-key", "benchmark-secret-key")))
+                .region(Region.of("auto"))
+                .endpointOverride(URI.create("https://benchmark.r2.cloudflarestorage.com"))
+                .build();
+    }
+}
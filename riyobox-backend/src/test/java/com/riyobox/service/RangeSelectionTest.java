@@ -0,0 +1,84 @@
+package com.riyobox.service;
+
+import com.riyobox.service.VideoStreamService.ByteRange;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangeSelectionTest {
+    
+    private static final long LENGTH = 1000;
+    private static final int MAX_RANGES = 16;
+    
+    @Test
+    void missingOrMalformedHeaderSelectsWholeObject() {
+        assertWhole(RangeSelection.of(null, LENGTH, MAX_RANGES));
+        assertWhole(RangeSelection.of("bytes=abc", LENGTH, MAX_RANGES));
+        assertWhole(RangeSelection.of("items=0-10", LENGTH, MAX_RANGES));
+    }
+    
+    @Test
+    void resolvesClosedOpenEndedAndSuffixRanges() {
+        assertEquals(List.of(new ByteRange(0, 99)), select("bytes=0-99"));
+        assertEquals(List.of(new ByteRange(900, 999)), select("bytes=900-"));
+        assertEquals(List.of(new ByteRange(900, 999)), select("bytes=-100"));
+        assertEquals(List.of(new ByteRange(0, 999)), select("bytes=-5000"));
+        assertEquals(List.of(new ByteRange(500, 999)), select("bytes=500-5000"));
+    }
+    
+    @Test
+    void rangesPastTheEndAreUnsatisfiable() {
+        assertTrue(RangeSelection.of("bytes=1000-1100", LENGTH, MAX_RANGES).unsatisfiable());
+        assertTrue(RangeSelection.of("bytes=1000-1100, 2000-", LENGTH, MAX_RANGES).unsatisfiable());
+        assertTrue(RangeSelection.of("bytes=-0", LENGTH, MAX_RANGES).unsatisfiable());
+        assertTrue(RangeSelection.of("bytes=0-", 0, MAX_RANGES).unsatisfiable());
+    }
+    
+    @Test
+    void dropsUnsatisfiableRangesAmongSatisfiableOnes() {
+        assertEquals(List.of(new ByteRange(0, 9)), select("bytes=0-9, 2000-3000"));
+    }
+    
+    @Test
+    void tooManyRangesSelectWholeObjectInsteadOfFailing() {
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i <= MAX_RANGES; i++) {
+            header.append(i == 0 ? "" : ",").append(i * 10).append('-').append(i * 10 + 1);
+        }
+        assertWhole(RangeSelection.of(header.toString(), LENGTH, MAX_RANGES));
+    }
+    
+    @Test
+    void overlappingRangesAreMergedInsteadOfRejected() {
+        // Adds up to more than the object, which used to be answered with 416
+        assertEquals(List.of(new ByteRange(0, 999)), select("bytes=0-499, 100-999, 0-999"));
+        assertEquals(List.of(new ByteRange(0, 199)), select("bytes=0-99, 50-199"));
+    }
+    
+    @Test
+    void adjacentRangesAreMerged() {
+        assertEquals(List.of(new ByteRange(0, 19)), select("bytes=0-9, 10-19"));
+    }
+    
+    @Test
+    void disjointRangesStaySeparateInOffsetOrder() {
+        assertEquals(List.of(new ByteRange(0, 99), new ByteRange(900, 999)), select("bytes=-100, 0-99"));
+        assertEquals(List.of(new ByteRange(0, 9), new ByteRange(20, 29), new ByteRange(40, 59)),
+                select("bytes=40-49, 0-9, 20-29, 50-59"));
+    }
+    
+    private List<ByteRange> select(String header) {
+        RangeSelection selection = RangeSelection.of(header, LENGTH, MAX_RANGES);
+        assertFalse(selection.unsatisfiable());
+        return selection.ranges();
+    }
+    
+    private void assertWhole(RangeSelection selection) {
+        assertFalse(selection.unsatisfiable());
+        assertTrue(selection.ranges().isEmpty());
+    }
+}
@@ -0,0 +1,64 @@
+package com.riyobox.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    @Test
+    void fullBucketGrantsUpToItsCapacity() {
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        long now = System.nanoTime();
+        
+        assertEquals(0, bucket.nanosUntil(2000, now));
+    }
+    
+    @Test
+    void emptyBucketWaitsForTheMissingTokensAtItsRate() {
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        long now = System.nanoTime();
+        bucket.consume(2000);
+        
+        long wait = bucket.nanosUntil(500, now);
+        
+        assertTrue(wait > SECOND / 2 - SECOND / 100 && wait <= SECOND / 2, "wait was " + wait);
+        assertEquals(0, bucket.nanosUntil(500, now + SECOND / 2));
+    }
+    
+    @Test
+    void refillStopsAtCapacity() {
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        long now = System.nanoTime();
+        bucket.consume(2000);
+        
+        assertEquals(2000, bucket.getTokens(now + 10 * SECOND), 0.001);
+    }
+    
+    @Test
+    void writesLargerThanTheCapacityGoIntoDebt() {
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        long now = System.nanoTime();
+        
+        assertEquals(0, bucket.nanosUntil(5000, now));
+        bucket.consume(5000);
+        
+        // 3000 bytes of debt and one more byte to wait for
+        long wait = bucket.nanosUntil(1, now);
+        assertTrue(wait > 3 * SECOND - SECOND / 100 && wait <= 3 * SECOND + SECOND / 1000, "wait was " + wait);
+    }
+    
+    @Test
+    void loweringTheCapacityDropsExcessTokens() {
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        
+        bucket.setRate(100, 200);
+        
+        assertEquals(200, bucket.getTokens(System.nanoTime()), 0.001);
+    }
+}
@@ -0,0 +1,162 @@
+package com.riyobox.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Throughput and allocation of the ways a cached block file reaches a loopback socket: the old
+// InputStreamResource path, VideoStreamService.transferRange's copying fallback, and the sendfile handoff of
+// localSlice. Not part of the regular build (surefire only picks up *Test classes);
+// run with: mvn test -Dtest=ZeroCopyTransferBenchmark
+@Slf4j
+class ZeroCopyTransferBenchmark {
+    
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    // Tomcat's default response buffer, which sits between the servlet stream and the socket
+    private static final int RESPONSE_BUFFER = 8192;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+    
+    private static Path file;
+    private static ServerSocketChannel server;
+    private static Thread drain;
+    private static final AtomicLong drained = new AtomicLong();
+    
+    @BeforeAll
+    static void setUp() throws IOException {
+        file = Files.createTempFile("riyobox-benchmark-", ".blk");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        Files.write(file, data);
+        
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            while (server.isOpen()) {
+                try (SocketChannel client = server.accept()) {
+                    int read;
+                    while ((read = client.read(buffer.clear())) >= 0) {
+                        drained.addAndGet(read);
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "benchmark-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+    
+    @AfterAll
+    static void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(file);
+    }
+    
+    @Test
+    void copyingPathsAgainstSendfile() throws IOException {
+        report("InputStreamResource", measure(this::copyThroughHeap));
+        report("transferRange", measure(this::transferToServletStream));
+        report("sendfile handoff", measure(this::sendfile));
+    }
+    
+    private static void report(String path, Result result) {
+        log.info("{}: {} MB/s, {} bytes allocated per {} MB", path, String.format("%.1f", result.megabytesPerSecond()),
+                result.allocatedPerRound(), FILE_SIZE >> 20);
+    }
+    
+    // What Spring's ResourceHttpMessageConverter did with the InputStreamResource StreamController returned
+    private void copyThroughHeap(SocketChannel socket) throws IOException {
+        InputStreamResource resource = new InputStreamResource(Files.newInputStream(file));
+        try (InputStream in = resource.getInputStream()) {
+            OutputStream out = Channels.newOutputStream(socket);
+            StreamUtils.copy(in, out);
+        }
+    }
+    
+    // What VideoStreamService.transferRange does per cached block: transferTo into a channel over the servlet
+    // stream, which the JDK can only serve by copying through heap buffers
+    private void transferToServletStream(SocketChannel socket) throws IOException {
+        OutputStream servletStream = new BufferedOutputStream(socket.socket().getOutputStream(), RESPONSE_BUFFER);
+        WritableByteChannel target = Channels.newChannel(servletStream);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < FILE_SIZE) {
+                sent += channel.transferTo(sent, FILE_SIZE - sent, target);
+            }
+        }
+        servletStream.flush();
+    }
+    
+    // What Tomcat does with the file region StreamController hands over from localSlice: transferTo straight into
+    // the socket, which is sendfile(2) on Linux
+    private void sendfile(SocketChannel socket) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < FILE_SIZE) {
+                sent += channel.transferTo(sent, FILE_SIZE - sent, socket);
+            }
+        }
+    }
+    
+    private Result measure(Transfer transfer) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(transfer);
+        }
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            round(transfer);
+        }
+        long elapsed = System.nanoTime() - started;
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new Result((double) FILE_SIZE * ROUNDS / (1 << 20) / (elapsed / 1e9), allocated / ROUNDS);
+    }
+    
+    private void round(Transfer transfer) throws IOException {
+        long before = drained.get();
+        try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+            transfer.send(socket);
+        }
+        // Wait for the drain so the next round starts on an empty socket
+        while (drained.get() - before < FILE_SIZE) {
+            Thread.onSpinWait();
+        }
+        assertEquals(FILE_SIZE, drained.get() - before);
+    }
+    
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+    
+    private interface Transfer {
+        void send(SocketChannel socket) throws IOException;
+    }
+    
+    private record Result(double megabytesPerSecond, long allocatedPerRound) {
+    }
+}